@@ -0,0 +1,82 @@
+// Read-path load test. Run it once per thread mode and compare http_reqs/s and the p(99) lines:
+//   k6 run -e BASE_URL=http://localhost:8080 load-test.js
+// Seeds DEVICES devices with SEED_POINTS readings each through the batch endpoint, then VUS
+// virtual users read tracks, stream them and query nearby devices for DURATION.
+import http from 'k6/http';
+import encoding from 'k6/encoding';
+import { check } from 'k6';
+
+const BASE_URL = __ENV.BASE_URL || 'http://localhost:8080';
+const DEVICES = parseInt(__ENV.DEVICES || '50');
+const SEED_POINTS = parseInt(__ENV.SEED_POINTS || '200');
+
+const params = {
+  headers: {
+    Authorization: 'Basic ' + encoding.b64encode(`${__ENV.USER || 'admin'}:${__ENV.PASSWORD || 'admin'}`),
+    'Content-Type': 'application/json',
+  },
+};
+
+export const options = {
+  scenarios: {
+    reads: {
+      executor: 'constant-vus',
+      vus: parseInt(__ENV.VUS || '400'),
+      duration: __ENV.DURATION || '60s',
+    },
+  },
+  summaryTrendStats: ['avg', 'p(50)', 'p(95)', 'p(99)', 'max'],
+  // Always-true thresholds, only there so the summary breaks the latencies down per endpoint
+  thresholds: {
+    'http_req_duration{endpoint:data}': ['p(99)>=0'],
+    'http_req_duration{endpoint:stream}': ['p(99)>=0'],
+    'http_req_duration{endpoint:nearby}': ['p(99)>=0'],
+  },
+};
+
+function deviceId(i) {
+  return `load-device-${i}`;
+}
+
+// Query parameters are local date-times; reading timestamps need the milliseconds and the Z
+function iso(date) {
+  return date.toISOString().substring(0, 19);
+}
+
+export function setup() {
+  const start = new Date(Date.now() - SEED_POINTS * 1000);
+  const batchParams = { headers: Object.assign({}, params.headers, { 'Content-Type': 'application/x-ndjson' }) };
+  for (let d = 0; d < DEVICES; d++) {
+    const lines = [];
+    for (let p = 0; p < SEED_POINTS; p++) {
+      lines.push(JSON.stringify({
+        deviceId: deviceId(d),
+        latitude: 37.7 + d * 0.001 + p * 0.00001,
+        longitude: -122.4 + p * 0.00001,
+        speed: 30 + (p % 20),
+        heading: (p * 7) % 360,
+        timestamp: new Date(start.getTime() + p * 1000).toISOString(),
+      }));
+    }
+    const res = http.post(`${BASE_URL}/api/gps/data/batch`, lines.join('\n'), batchParams);
+    check(res, { 'seed 200': (r) => r.status === 200 && r.json('rejected') === 0 });
+  }
+  return { startTime: iso(new Date(start.getTime() - 60000)), endTime: iso(new Date(Date.now() + 60000)) };
+}
+
+export default function (range) {
+  const device = deviceId(Math.floor(Math.random() * DEVICES));
+  const window = `deviceId=${device}&startTime=${range.startTime}&endTime=${range.endTime}`;
+  const roll = Math.random();
+
+  if (roll < 0.5) {
+    const res = http.get(`${BASE_URL}/api/gps/data?${window}&maxPoints=100`, Object.assign({ tags: { endpoint: 'data' } }, params));
+    check(res, { 'data 200': (r) => r.status === 200 });
+  } else if (roll < 0.8) {
+    const res = http.get(`${BASE_URL}/api/gps/data/stream?${window}&limit=500`, Object.assign({ tags: { endpoint: 'stream' } }, params));
+    check(res, { 'stream 200': (r) => r.status === 200 });
+  } else {
+    const res = http.get(`${BASE_URL}/api/devices/nearby?lat=37.72&lon=-122.4&radius=5&limit=50`, Object.assign({ tags: { endpoint: 'nearby' } }, params));
+    check(res, { 'nearby 200': (r) => r.status === 200 });
+  }
+}
@@ -0,0 +1,97 @@
+package com.gpstracker.binary;
+
+import com.gpstracker.model.GpsData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Compact length-prefixed frame format spoken by hardware trackers. All values are
+ * big-endian; every frame is a u16 length (of what follows) and a u8 frame type.
+ *
+ * <pre>
+ * LOGIN     0x01  u8 idLength, idLength bytes of ASCII device id
+ * POSITION  0x02  u32 seq, i64 epochMillis (UTC), i32 lat*1e7, i32 lon*1e7,
+ *                 u16 speed*10 (km/h), u16 heading*100, u8 battery %,
+ *                 u16 accuracy*10 (m), i16 altitude (m), u8 signal strength
+ * HEARTBEAT 0x03  (empty)
+ * ACK       0x81  u32 last accepted seq, u16 frames accepted since previous ACK
+ * NACK      0x82  u32 rejected seq
+ * </pre>
+ */
+final class BinaryFrameCodec {
+
+    static final byte LOGIN = 0x01;
+    static final byte POSITION = 0x02;
+    static final byte HEARTBEAT = 0x03;
+    static final byte ACK = (byte) 0x81;
+    static final byte NACK = (byte) 0x82;
+
+    static final int LENGTH_PREFIX = 2;
+    static final int MAX_FRAME_LENGTH = 1024;
+    static final int POSITION_LENGTH = 1 + 4 + 8 + 4 + 4 + 2 + 2 + 1 + 2 + 2 + 1;
+    static final int ACK_FRAME_SIZE = LENGTH_PREFIX + 1 + 4 + 2;
+    static final int NACK_FRAME_SIZE = LENGTH_PREFIX + 1 + 4;
+
+    private BinaryFrameCodec() {
+    }
+
+    /**
+     * Reads the device id of a LOGIN frame; buffer is positioned after the type byte and
+     * frameLength is the frame's length prefix
+     */
+    static String decodeLogin(ByteBuffer buffer, int frameLength) throws IOException {
+        if (frameLength < 2) {
+            throw new IOException("Short login frame");
+        }
+        int length = buffer.get() & 0xff;
+        if (length == 0 || length > frameLength - 2) {
+            // The id would run into the next frame
+            throw new IOException("Invalid device id length " + length + " in login frame of length " + frameLength);
+        }
+        byte[] id = new byte[length];
+        buffer.get(id);
+        return new String(id, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads a POSITION frame with absolute gets; buffer is positioned after the type
+     * byte. Returns the frame's sequence number.
+     */
+    static long decodePosition(ByteBuffer buffer, GpsData target) {
+        int p = buffer.position();
+        long seq = buffer.getInt(p) & 0xffffffffL;
+
+        target.setTimestamp(LocalDateTime.ofEpochSecond(
+            Math.floorDiv(buffer.getLong(p + 4), 1000L),
+            (int) Math.floorMod(buffer.getLong(p + 4), 1000L) * 1_000_000,
+            ZoneOffset.UTC));
+        target.setLatitude(buffer.getInt(p + 12) / 1e7);
+        target.setLongitude(buffer.getInt(p + 16) / 1e7);
+        target.setSpeed((buffer.getShort(p + 20) & 0xffff) / 10.0);
+        target.setHeading((buffer.getShort(p + 22) & 0xffff) / 100.0);
+        target.setBatteryLevel((buffer.get(p + 24) & 0xff) / 100.0);
+        target.setAccuracy((buffer.getShort(p + 25) & 0xffff) / 10.0);
+        target.setAltitude(buffer.getShort(p + 27));
+        target.setSignalStrength(buffer.get(p + 29) & 0xff);
+
+        buffer.position(p + POSITION_LENGTH - 1);
+        return seq;
+    }
+
+    static void encodeAck(ByteBuffer out, long lastSeq, int count) {
+        out.putShort((short) (ACK_FRAME_SIZE - LENGTH_PREFIX));
+        out.put(ACK);
+        out.putInt((int) lastSeq);
+        out.putShort((short) Math.min(count, 0xffff));
+    }
+
+    static void encodeNack(ByteBuffer out, long seq) {
+        out.putShort((short) (NACK_FRAME_SIZE - LENGTH_PREFIX));
+        out.put(NACK);
+        out.putInt((int) seq);
+    }
+}
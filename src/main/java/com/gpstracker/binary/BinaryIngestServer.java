@@ -0,0 +1,265 @@
+package com.gpstracker.binary;
+
+import com.gpstracker.model.GpsData;
+import com.gpstracker.service.ingest.IngestionPipeline;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plain java.nio selector loop for trackers that speak the binary frame format of
+ * BinaryFrameCodec over TCP or UDP. Decoded readings go into the same ingest pipeline
+ * as the WebSocket and REST paths. Each read is answered with at most one ACK frame
+ * covering every position frame it contained.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "gps.binary.enabled", havingValue = "true")
+public class BinaryIngestServer {
+
+    private static final int CONNECTION_BUFFER_SIZE = 4 * 1024;
+    private static final int DATAGRAM_BUFFER_SIZE = 64 * 1024;
+
+    @Value("${gps.binary.tcp-port:5055}")
+    private int tcpPort;
+
+    @Value("${gps.binary.udp-port:5055}")
+    private int udpPort;
+
+    @Autowired
+    private IngestionPipeline ingestionPipeline;
+
+    private Selector selector;
+    private ServerSocketChannel tcpChannel;
+    private DatagramChannel udpChannel;
+    private Thread ioThread;
+    private volatile boolean running;
+
+    // Only touched by the I/O thread
+    private final ByteBuffer udpBuffer = ByteBuffer.allocateDirect(DATAGRAM_BUFFER_SIZE);
+    private final ByteBuffer replyBuffer = ByteBuffer.allocateDirect(BinaryFrameCodec.ACK_FRAME_SIZE
+            + BinaryFrameCodec.NACK_FRAME_SIZE);
+
+    @PostConstruct
+    public void start() throws IOException {
+        selector = Selector.open();
+
+        tcpChannel = ServerSocketChannel.open();
+        tcpChannel.bind(new InetSocketAddress(tcpPort));
+        tcpChannel.configureBlocking(false);
+        tcpChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        udpChannel = DatagramChannel.open();
+        udpChannel.bind(new InetSocketAddress(udpPort));
+        udpChannel.configureBlocking(false);
+        udpChannel.register(selector, SelectionKey.OP_READ);
+
+        running = true;
+        ioThread = new Thread(this::run, "gps-binary-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+        log.info("Binary ingest listening on tcp/{} and udp/{}", tcpPort, udpPort);
+    }
+
+    @PreDestroy
+    public void stop() throws IOException, InterruptedException {
+        running = false;
+        selector.wakeup();
+        ioThread.join(TimeUnit.SECONDS.toMillis(5));
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select(1000);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+            } catch (IOException e) {
+                log.error("Binary ingest selector error: ", e);
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        if (key.channel() == udpChannel) {
+            try {
+                readDatagram();
+            } catch (IOException | RuntimeException e) {
+                // A bad datagram must not take the shared UDP channel down
+                log.warn("Dropping binary datagram after error: {}", e.getMessage());
+            }
+            return;
+        }
+
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                accept();
+            } else if (key.isReadable()) {
+                readStream(key);
+            } else if (key.isWritable()) {
+                flushPending(key);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Closing binary connection after error: {}", e.getMessage());
+            close(key);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = tcpChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.register(selector, SelectionKey.OP_READ, new Connection());
+    }
+
+    private void readStream(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+
+        if (channel.read(connection.in) < 0) {
+            close(key);
+            return;
+        }
+
+        connection.in.flip();
+        connection.deviceId = decodeFrames(connection.in, connection.deviceId, connection.out);
+        connection.in.compact();
+
+        if (connection.in.position() == connection.in.capacity()) {
+            throw new IOException("Frame larger than read buffer");
+        }
+        flushPending(key);
+    }
+
+    private void readDatagram() throws IOException {
+        udpBuffer.clear();
+        SocketAddress sender = udpChannel.receive(udpBuffer);
+        if (sender == null) {
+            return;
+        }
+
+        // Datagrams are self-contained: a LOGIN frame followed by position frames
+        udpBuffer.flip();
+        replyBuffer.clear();
+        decodeFrames(udpBuffer, null, replyBuffer);
+        replyBuffer.flip();
+        if (replyBuffer.hasRemaining()) {
+            udpChannel.send(replyBuffer, sender);
+        }
+    }
+
+    /**
+     * Consumes every complete frame in the buffer and appends one ACK (and a NACK for
+     * the first rejected reading, if any) to out. Returns the device id in effect.
+     */
+    private String decodeFrames(ByteBuffer in, String deviceId, ByteBuffer out) throws IOException {
+        int accepted = 0;
+        long lastSeq = -1;
+        long rejectedSeq = -1;
+
+        while (in.remaining() >= BinaryFrameCodec.LENGTH_PREFIX) {
+            int length = in.getShort(in.position()) & 0xffff;
+            if (length == 0 || length > BinaryFrameCodec.MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            if (in.remaining() < BinaryFrameCodec.LENGTH_PREFIX + length) {
+                break; // partial frame, wait for more bytes
+            }
+
+            int frameEnd = in.position() + BinaryFrameCodec.LENGTH_PREFIX + length;
+            in.position(in.position() + BinaryFrameCodec.LENGTH_PREFIX);
+            byte type = in.get();
+
+            if (type == BinaryFrameCodec.LOGIN) {
+                deviceId = BinaryFrameCodec.decodeLogin(in, length);
+            } else if (type == BinaryFrameCodec.POSITION) {
+                if (deviceId == null) {
+                    throw new IOException("Position frame before login");
+                }
+                if (length < BinaryFrameCodec.POSITION_LENGTH) {
+                    throw new IOException("Short position frame");
+                }
+
+                GpsData gpsData = new GpsData();
+                gpsData.setDeviceId(deviceId);
+                long seq = BinaryFrameCodec.decodePosition(in, gpsData);
+
+                // Never wait for a full partition here: this thread serves every connection
+                if (rejectedSeq < 0 && ingestionPipeline.trySubmit(gpsData)) {
+                    accepted++;
+                    lastSeq = seq;
+                } else if (rejectedSeq < 0) {
+                    rejectedSeq = seq;
+                }
+            }
+            // HEARTBEAT and unknown types carry nothing to ingest
+
+            in.position(frameEnd);
+        }
+
+        if (accepted > 0 && out.remaining() >= BinaryFrameCodec.ACK_FRAME_SIZE) {
+            BinaryFrameCodec.encodeAck(out, lastSeq, accepted);
+        }
+        if (rejectedSeq >= 0 && out.remaining() >= BinaryFrameCodec.NACK_FRAME_SIZE) {
+            // The device resends from here; later frames of this read were not enqueued
+            BinaryFrameCodec.encodeNack(out, rejectedSeq);
+        }
+        return deviceId;
+    }
+
+    private void flushPending(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        connection.out.flip();
+        ((SocketChannel) key.channel()).write(connection.out);
+        boolean pending = connection.out.hasRemaining();
+        connection.out.compact();
+
+        key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            log.debug("Error closing binary connection: {}", e.getMessage());
+        }
+    }
+
+    private static class Connection {
+        private final ByteBuffer in = ByteBuffer.allocateDirect(CONNECTION_BUFFER_SIZE);
+        private final ByteBuffer out = ByteBuffer.allocateDirect(256);
+        private String deviceId;
+    }
+}
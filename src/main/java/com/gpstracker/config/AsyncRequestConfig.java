@@ -0,0 +1,54 @@
+package com.gpstracker.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Bounded pool for streamed responses such as GET /api/gps/data/stream in the default
+ * platform-thread mode. The STOMP executors make Boot's applicationTaskExecutor back off,
+ * which would leave MVC on SimpleAsyncTaskExecutor: one new, unbounded thread for every
+ * stream, each held for up to spring.mvc.async.request-timeout.
+ *
+ * A stream that finds every thread busy and the queue full is answered with 503.
+ * VirtualThreadConfig replaces this pool when gps.threads.virtual=true.
+ */
+@Configuration
+@ConditionalOnProperty(name = "gps.threads.virtual", havingValue = "false", matchIfMissing = true)
+public class AsyncRequestConfig implements WebMvcConfigurer {
+
+    @Value("${gps.stream.threads:32}")
+    private int threads;
+
+    @Value("${gps.stream.queue-capacity:64}")
+    private int queueCapacity;
+
+    private final ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+
+    @PostConstruct
+    public void start() {
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.setThreadNamePrefix("gps-stream-");
+        executor.setDaemon(true);
+        executor.initialize();
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdown();
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(executor);
+    }
+}
@@ -0,0 +1,73 @@
+package com.gpstracker.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runs the blocking paths on virtual threads when gps.threads.virtual=true (Java 21+):
+ * Tomcat request handling, and with it the device and compact WebSocket handlers;
+ * streamed responses; the @Scheduled jobs. WebSocketConfig moves the STOMP channels.
+ * Requests waiting on Redis, OpenWeatherMap or disk then hold a virtual thread instead of
+ * one of Tomcat's 200 platform threads, so the limit becomes Redis and CPU rather than the
+ * pool size.
+ *
+ * The ingest partition workers, the live flush and the binary server keep their platform
+ * threads: they are few, long-lived and CPU-bound, which virtual threads do not help.
+ */
+@Slf4j
+@Configuration
+@ConditionalOnProperty(name = "gps.threads.virtual", havingValue = "true")
+public class VirtualThreadConfig implements WebMvcConfigurer {
+
+    private final ExecutorService requestExecutor;
+    private final ExecutorService asyncExecutor;
+
+    public VirtualThreadConfig() {
+        if (!VirtualThreads.isAvailable()) {
+            throw new IllegalStateException("gps.threads.virtual=true needs Java 21 or later, running on "
+                    + System.getProperty("java.version"));
+        }
+        requestExecutor = VirtualThreads.perTaskExecutor("gps-http-");
+        asyncExecutor = VirtualThreads.perTaskExecutor("gps-async-");
+        log.info("Running request handling, streamed responses, STOMP channels and scheduled jobs on virtual threads");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        requestExecutor.shutdown();
+        asyncExecutor.shutdown();
+    }
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandlerCustomizer() {
+        return protocolHandler -> protocolHandler.setExecutor(requestExecutor);
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        // StreamingResponseBody writers, such as GET /api/gps/data/stream
+        configurer.setTaskExecutor(new TaskExecutorAdapter(asyncExecutor));
+    }
+
+    /**
+     * Picked up by name for @Scheduled; its workers are virtual threads, so a job blocked
+     * on Redis does not hold back the others
+     */
+    @Bean
+    public ThreadPoolTaskScheduler taskScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(8);
+        scheduler.setThreadFactory(VirtualThreads.factory("gps-scheduled-"));
+        return scheduler;
+    }
+}
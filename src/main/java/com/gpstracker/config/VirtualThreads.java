@@ -0,0 +1,86 @@
+package com.gpstracker.config;
+
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads for gps.threads.virtual=true, looked up reflectively so the same build
+ * still compiles for and runs on Java 11 in the default platform-thread mode.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    static boolean isAvailable() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A factory of virtual threads named prefix0, prefix1, ...
+     */
+    static ThreadFactory factory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("gps.threads.virtual=true needs Java 21 or later, running on "
+                    + System.getProperty("java.version"), e);
+        }
+    }
+
+    /**
+     * An executor that starts a new virtual thread for every task
+     */
+    static ExecutorService perTaskExecutor(String prefix) {
+        ThreadFactory factory = factory(prefix);
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create a virtual thread executor", e);
+        }
+    }
+
+    /**
+     * For the STOMP channels, which only accept a ThreadPoolTaskExecutor: tasks go to a
+     * virtual thread each, and the pool the base class creates on initialize stays idle
+     */
+    static ThreadPoolTaskExecutor channelExecutor(String prefix) {
+        ExecutorService virtualExecutor = perTaskExecutor(prefix);
+        return new ThreadPoolTaskExecutor() {
+            @Override
+            public void execute(Runnable task) {
+                virtualExecutor.execute(task);
+            }
+
+            @Override
+            public Future<?> submit(Runnable task) {
+                return virtualExecutor.submit(task);
+            }
+
+            @Override
+            public <T> Future<T> submit(Callable<T> task) {
+                return virtualExecutor.submit(task);
+            }
+
+            @Override
+            public void shutdown() {
+                virtualExecutor.shutdown();
+                super.shutdown();
+            }
+        };
+    }
+}
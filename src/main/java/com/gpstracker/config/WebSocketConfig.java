@@ -1,19 +1,56 @@
 package com.gpstracker.config;
 
+import com.gpstracker.websocket.CompactLiveHandler;
+import com.gpstracker.websocket.GpsHandshakeHandler;
+import com.gpstracker.websocket.GpsWebSocketHandler;
+import com.gpstracker.websocket.OutboundSessionTracker;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
 
 @Configuration
+@EnableWebSocket
 @EnableWebSocketMessageBroker
-public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
+public class WebSocketConfig implements WebSocketMessageBrokerConfigurer, WebSocketConfigurer {
+
+    @Value("${gps.ws.send-time-limit-ms:10000}")
+    private int sendTimeLimitMs;
+
+    @Value("${gps.ws.send-buffer-size-limit:524288}")
+    private int sendBufferSizeLimit;
+
+    @Value("${gps.threads.virtual:false}")
+    private boolean virtualThreads;
+
+    @Autowired
+    private GpsHandshakeHandler gpsHandshakeHandler;
+
+    @Autowired
+    private OutboundSessionTracker outboundSessionTracker;
+
+    @Autowired
+    private CompactLiveHandler compactLiveHandler;
+
+    // Lazy: the handler's dependencies reach the STOMP messaging template, which is built from this class
+    @Lazy
+    @Autowired
+    private GpsWebSocketHandler gpsWebSocketHandler;
 
     @Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
         // Enable prefix for messages TO client
-        config.enableSimpleBroker("/topic");
+        // /queue carries per-session live updates, addressed as /user/queue/updates
+        config.enableSimpleBroker("/topic", "/queue");
         
         // Enable prefix for messages FROM client
         config.setApplicationDestinationPrefixes("/app");
@@ -22,9 +59,48 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
     @Override
     public void registerStompEndpoints(StompEndpointRegistry registry) {
         // Register the "/ws" endpoint, enabling SockJS fallback options
+        // Each connection gets its own principal, so /user destinations reach exactly one session
         registry.addEndpoint("/ws")
+            .setHandshakeHandler(gpsHandshakeHandler)
             .setAllowedOrigins("*")
             .withSockJS()
             .setClientLibraryUrl("https://cdn.jsdelivr.net/npm/sockjs-client@1/dist/sockjs.min.js");
     }
+
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        // A session whose socket write stalls this long, or buffers this much, is closed
+        registration.setSendTimeLimit(sendTimeLimitMs)
+            .setSendBufferSizeLimit(sendBufferSizeLimit)
+            .addDecoratorFactory(outboundSessionTracker);
+    }
+
+    @Override
+    public void configureClientInboundChannel(ChannelRegistration registration) {
+        if (virtualThreads) {
+            // @MessageMapping handlers on a virtual thread each instead of a bounded pool
+            registration.taskExecutor(VirtualThreads.channelExecutor("gps-stomp-in-"));
+        }
+    }
+
+    @Override
+    public void configureClientOutboundChannel(ChannelRegistration registration) {
+        // Per-session count of messages not yet written, read by LiveUpdateConflater to hold back slow consumers
+        registration.interceptors(outboundSessionTracker);
+        if (virtualThreads) {
+            // Socket writes block; a virtual thread each lets a stalled client park rather than hold a pool thread
+            registration.taskExecutor(VirtualThreads.channelExecutor("gps-stomp-out-"));
+        }
+    }
+
+    @Override
+    public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        // Device endpoint: JSON readings in, acks and pushed commands out
+        registry.addHandler(gpsWebSocketHandler, "/gps")
+            .setAllowedOrigins("*");
+
+        // Plain WebSocket with binary frames, for dashboards following many devices
+        registry.addHandler(compactLiveHandler, "/live/compact")
+            .setAllowedOrigins("*");
+    }
 }
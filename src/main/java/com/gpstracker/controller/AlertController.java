@@ -0,0 +1,59 @@
+package com.gpstracker.controller;
+
+import com.gpstracker.model.AlertRule;
+import com.gpstracker.service.alert.AlertRuleEngine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@Slf4j
+@RestController
+@RequestMapping("/api/alerts")
+@CrossOrigin(origins = "*")
+public class AlertController {
+
+    @Autowired
+    private AlertRuleEngine alertRuleEngine;
+
+    /**
+     * The rules in effect for the fleet; use "default" for devices without fleet rules
+     */
+    @GetMapping("/rules/{fleetId}")
+    public ResponseEntity<List<AlertRule>> getRules(@PathVariable String fleetId) {
+        try {
+            return ResponseEntity.ok(alertRuleEngine.getRules(fleetId));
+        } catch (Exception e) {
+            log.error("Error retrieving alert rules: ", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @PutMapping("/rules/{fleetId}")
+    public ResponseEntity<Void> setRules(@PathVariable String fleetId, @RequestBody List<AlertRule> rules) {
+        try {
+            alertRuleEngine.setRules(fleetId, rules);
+            return ResponseEntity.ok().build();
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected alert rules: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (Exception e) {
+            log.error("Error saving alert rules: ", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @DeleteMapping("/rules/{fleetId}")
+    public ResponseEntity<Void> deleteRules(@PathVariable String fleetId) {
+        try {
+            return alertRuleEngine.deleteRules(fleetId)
+                    ? ResponseEntity.noContent().build()
+                    : ResponseEntity.notFound().build();
+        } catch (Exception e) {
+            log.error("Error deleting alert rules: ", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.gpstracker.controller;
+
+import com.gpstracker.model.DeviceInfo;
+import com.gpstracker.model.NearbyDevice;
+import com.gpstracker.service.proximity.ProximityIndex;
+import com.gpstracker.service.registry.DeviceRegistry;
+import com.gpstracker.service.registry.DeviceRegistry.DevicePage;
+import com.gpstracker.websocket.DeviceSessionManager;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+@Slf4j
+@RestController
+@RequestMapping("/api/devices")
+@CrossOrigin(origins = "*")
+public class DeviceController {
+
+    @Autowired
+    private DeviceRegistry deviceRegistry;
+
+    @Autowired
+    private ProximityIndex proximityIndex;
+
+    @Autowired
+    private DeviceSessionManager deviceSessionManager;
+
+    /**
+     * A page of registered devices; pass nextCursor from the response to get the next page
+     */
+    @GetMapping
+    public ResponseEntity<DevicePage> listDevices(
+            @RequestParam(required = false) String fleetId,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime activeSince,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "100") int limit) {
+
+        try {
+            return ResponseEntity.ok(deviceRegistry.listDevices(fleetId, activeSince, cursor, limit));
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected device listing: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (Exception e) {
+            log.error("Error listing devices: ", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    /**
+     * Online devices within radius km of a point, nearest first
+     */
+    @GetMapping("/nearby")
+    public ResponseEntity<List<NearbyDevice>> getNearby(
+            @RequestParam double lat,
+            @RequestParam double lon,
+            @RequestParam double radius,
+            @RequestParam(required = false) String fleetId,
+            @RequestParam(defaultValue = "1000") int limit) {
+
+        try {
+            return ResponseEntity.ok(proximityIndex.withinRadius(lat, lon, radius, fleetId, limit));
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected nearby query: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (Exception e) {
+            log.error("Error querying nearby devices: ", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @GetMapping("/within")
+    public ResponseEntity<List<NearbyDevice>> getWithin(
+            @RequestParam double minLat,
+            @RequestParam double minLon,
+            @RequestParam double maxLat,
+            @RequestParam double maxLon,
+            @RequestParam(required = false) String fleetId,
+            @RequestParam(defaultValue = "1000") int limit) {
+
+        try {
+            return ResponseEntity.ok(proximityIndex.withinBox(minLat, minLon, maxLat, maxLon, fleetId, limit));
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected bounding box query: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (Exception e) {
+            log.error("Error querying devices in bounding box: ", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    /**
+     * The k online devices nearest to a point, optionally no further than maxRadius km
+     */
+    @GetMapping("/nearest")
+    public ResponseEntity<List<NearbyDevice>> getNearest(
+            @RequestParam double lat,
+            @RequestParam double lon,
+            @RequestParam(defaultValue = "5") int k,
+            @RequestParam(defaultValue = "0") double maxRadius,
+            @RequestParam(required = false) String fleetId) {
+
+        try {
+            return ResponseEntity.ok(proximityIndex.nearest(lat, lon, k, maxRadius, fleetId));
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected nearest query: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (Exception e) {
+            log.error("Error querying nearest devices: ", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @GetMapping("/{deviceId}")
+    public ResponseEntity<DeviceInfo> getDevice(@PathVariable String deviceId) {
+        try {
+            DeviceInfo device = deviceRegistry.getDevice(deviceId);
+            return device != null ? ResponseEntity.ok(device) : ResponseEntity.notFound().build();
+        } catch (Exception e) {
+            log.error("Error retrieving device: ", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    /**
+     * Pushes a JSON command to the device over its WebSocket session on this node. The device
+     * receives {"type":"command","commandId":..,"command":{body}}; 404 if it is not connected here.
+     */
+    @PostMapping("/{deviceId}/commands")
+    public ResponseEntity<Map<String, Object>> pushCommand(@PathVariable String deviceId,
+                                                           @RequestBody Map<String, Object> command) {
+        try {
+            String commandId = deviceSessionManager.pushCommand(deviceId, command);
+            if (commandId == null) {
+                return ResponseEntity.notFound().build();
+            }
+            return ResponseEntity.status(HttpStatus.ACCEPTED)
+                    .body(Map.of("deviceId", deviceId, "commandId", commandId));
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected command for device {}: {}", deviceId, e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (IOException e) {
+            log.warn("Cannot deliver command to device {}: {}", deviceId, e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        } catch (Exception e) {
+            log.error("Error pushing command to device {}: ", deviceId, e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+}
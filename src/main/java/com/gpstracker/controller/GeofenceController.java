@@ -0,0 +1,84 @@
+package com.gpstracker.controller;
+
+import com.gpstracker.model.GeofenceZone;
+import com.gpstracker.service.geofence.GeofenceService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@Slf4j
+@RestController
+@RequestMapping("/api/geofence")
+@CrossOrigin(origins = "*")
+public class GeofenceController {
+
+    @Autowired
+    private GeofenceService geofenceService;
+
+    @GetMapping("/fleets/{fleetId}/zones")
+    public ResponseEntity<List<GeofenceZone>> getZones(@PathVariable String fleetId) {
+        try {
+            return ResponseEntity.ok(geofenceService.getZones(fleetId));
+        } catch (Exception e) {
+            log.error("Error retrieving geofence zones: ", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    /**
+     * Creates or replaces a zone; the zone's id in the body identifies it within the fleet
+     */
+    @PutMapping("/fleets/{fleetId}/zones")
+    public ResponseEntity<Void> saveZone(@PathVariable String fleetId, @RequestBody GeofenceZone zone) {
+        try {
+            geofenceService.saveZone(fleetId, zone);
+            return ResponseEntity.ok().build();
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected geofence zone: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (Exception e) {
+            log.error("Error saving geofence zone: ", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @DeleteMapping("/fleets/{fleetId}/zones/{zoneId}")
+    public ResponseEntity<Void> deleteZone(@PathVariable String fleetId, @PathVariable String zoneId) {
+        try {
+            return geofenceService.deleteZone(fleetId, zoneId)
+                    ? ResponseEntity.noContent().build()
+                    : ResponseEntity.notFound().build();
+        } catch (Exception e) {
+            log.error("Error deleting geofence zone: ", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @PutMapping("/fleets/{fleetId}/members/{deviceId}")
+    public ResponseEntity<Void> addMember(@PathVariable String fleetId, @PathVariable String deviceId) {
+        try {
+            geofenceService.setDeviceFleet(deviceId, fleetId);
+            return ResponseEntity.ok().build();
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected fleet membership: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (Exception e) {
+            log.error("Error setting fleet membership: ", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @DeleteMapping("/members/{deviceId}")
+    public ResponseEntity<Void> removeMember(@PathVariable String deviceId) {
+        try {
+            geofenceService.removeDeviceFleet(deviceId);
+            return ResponseEntity.noContent().build();
+        } catch (Exception e) {
+            log.error("Error removing fleet membership: ", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+}
@@ -1,24 +1,44 @@
 package com.gpstracker.controller;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.gpstracker.model.GpsData;
+import com.gpstracker.model.RollupPoint;
+import com.gpstracker.service.BatchIngestService;
+import com.gpstracker.service.BatchIngestService.BatchResult;
 import com.gpstracker.service.ExportService;
 import com.gpstracker.service.GpsDataService;
+import com.gpstracker.service.GpsDataService.TrackStream;
+import com.gpstracker.service.IngestMetrics;
+import com.gpstracker.service.alert.AlertService;
+import com.gpstracker.service.alert.AlertService.AlertPage;
+import com.gpstracker.service.ingest.IngestionPipeline;
+import com.gpstracker.service.rollup.RollupResolution;
+import com.gpstracker.service.track.TrackSimplifier;
+import com.gpstracker.websocket.DeviceSessionManager;
+import com.gpstracker.websocket.LiveUpdateBackplane;
+import com.gpstracker.websocket.LiveUpdateConflater;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.UrlResource;
 import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 @Slf4j
 @RestController
@@ -32,6 +52,30 @@ public class GpsDataController {
     @Autowired
     private GpsDataService gpsDataService;
 
+    @Autowired
+    private BatchIngestService batchIngestService;
+
+    @Autowired
+    private IngestMetrics ingestMetrics;
+
+    @Autowired
+    private IngestionPipeline ingestionPipeline;
+
+    @Autowired
+    private AlertService alertService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private LiveUpdateConflater liveUpdateConflater;
+
+    @Autowired(required = false)
+    private LiveUpdateBackplane liveUpdateBackplane;
+
+    @Autowired
+    private DeviceSessionManager deviceSessionManager;
+
     @GetMapping("/export")
     public ResponseEntity<Resource> exportGpsData(
             @RequestParam String deviceId,
@@ -53,30 +97,91 @@ public class GpsDataController {
         }
     }
 
+    /**
+     * Readings in time order. For map rendering, simplify (metres) drops points closer
+     * than that to the simplified track and maxPoints caps how many are returned.
+     */
     @GetMapping("/data")
     public ResponseEntity<List<GpsData>> getGpsData(
             @RequestParam String deviceId,
             @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime startTime,
-            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime endTime) {
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime endTime,
+            @RequestParam(defaultValue = "0") double simplify,
+            @RequestParam(defaultValue = "0") int maxPoints) {
         
         try {
             List<GpsData> data = gpsDataService.getGpsDataForDevice(deviceId, startTime, endTime);
+            if (simplify != 0 || maxPoints != 0) {
+                data = TrackSimplifier.simplify(data, simplify, maxPoints);
+            }
             return ResponseEntity.ok(data);
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected GPS data request: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
         } catch (Exception e) {
             log.error("Error retrieving GPS data: ", e);
             return ResponseEntity.internalServerError().build();
         }
     }
 
+    /**
+     * Streams the readings as NDJSON, one reading per line, written chunk by chunk as they
+     * are read from storage. When limit is reached and more readings remain, the last
+     * line is {"nextCursor":"..."}; pass it back as cursor for the next page.
+     */
+    @GetMapping(value = "/data/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamGpsData(
+            @RequestParam String deviceId,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime startTime,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime endTime,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "0") int limit) {
+
+        try {
+            TrackStream track = gpsDataService.openTrackStream(deviceId, startTime, endTime, cursor, limit);
+            StreamingResponseBody body = out -> {
+                String nextCursor = track.writeTo(chunk -> {
+                    for (GpsData gpsData : chunk) {
+                        out.write(objectMapper.writeValueAsBytes(gpsData));
+                        out.write('\n');
+                    }
+                    out.flush();
+                });
+                if (nextCursor != null) {
+                    out.write(objectMapper.writeValueAsBytes(Map.of("nextCursor", nextCursor)));
+                    out.write('\n');
+                }
+            };
+            return ResponseEntity.ok()
+                    .contentType(MediaType.APPLICATION_NDJSON)
+                    .body(body);
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected GPS data stream request: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (Exception e) {
+            log.error("Error streaming GPS data: ", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    /**
+     * A page of alerts, newest first; pass nextCursor from the response to get the next page
+     */
     @GetMapping("/alerts")
-    public ResponseEntity<List<GpsData>> getAlerts(
+    public ResponseEntity<AlertPage> getAlerts(
             @RequestParam String deviceId,
             @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime startTime,
-            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime endTime) {
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime endTime,
+            @RequestParam(required = false) String type,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "100") int limit) {
         
         try {
-            List<GpsData> alerts = gpsDataService.getAlerts(deviceId, startTime, endTime);
+            AlertPage alerts = alertService.getAlerts(deviceId, startTime, endTime, type, cursor, limit);
             return ResponseEntity.ok(alerts);
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected alerts request: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
         } catch (Exception e) {
             log.error("Error retrieving alerts: ", e);
             return ResponseEntity.internalServerError().build();
@@ -97,6 +202,29 @@ public class GpsDataController {
         }
     }
 
+    /**
+     * Statistics series in minute, hour or day buckets; only buckets with readings are returned
+     */
+    @GetMapping("/statistics/range")
+    public ResponseEntity<List<RollupPoint>> getStatisticsRange(
+            @RequestParam String deviceId,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime startTime,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime endTime,
+            @RequestParam(defaultValue = "hour") String resolution) {
+
+        try {
+            List<RollupPoint> series = gpsDataService.getStatisticsRange(
+                    deviceId, startTime, endTime, RollupResolution.parse(resolution));
+            return ResponseEntity.ok(series);
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected statistics range request: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (Exception e) {
+            log.error("Error retrieving statistics range: ", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
     @PostMapping("/geofence")
     public ResponseEntity<Void> setGeofence(
             @RequestParam String deviceId,
@@ -107,6 +235,9 @@ public class GpsDataController {
         try {
             gpsDataService.setGeofence(deviceId, centerLat, centerLon, radius);
             return ResponseEntity.ok().build();
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected geofence: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
         } catch (Exception e) {
             log.error("Error setting geofence: ", e);
             return ResponseEntity.internalServerError().build();
@@ -116,14 +247,56 @@ public class GpsDataController {
     @PostMapping("/data")
     public ResponseEntity<Void> saveGpsData(@RequestBody GpsData gpsData) {
         try {
-            gpsDataService.saveGpsData(gpsData);
-            return ResponseEntity.ok().build();
+            if (gpsData.getDeviceId() == null) {
+                return ResponseEntity.badRequest().build();
+            }
+            // Saved asynchronously by the partition that owns the device
+            if (!ingestionPipeline.submit(gpsData)) {
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+            }
+            return ResponseEntity.accepted().build();
         } catch (Exception e) {
             log.error("Error saving GPS data: ", e);
             return ResponseEntity.internalServerError().build();
         }
     }
 
+    @PostMapping(value = "/data/batch",
+                 consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE})
+    public ResponseEntity<BatchResult> saveGpsDataBatch(InputStream body) {
+        try {
+            return ResponseEntity.ok(batchIngestService.ingest(body));
+        } catch (JsonProcessingException e) {
+            log.warn("Malformed GPS batch: {}", e.getOriginalMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (IOException e) {
+            log.error("Error reading GPS batch: ", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @GetMapping("/metrics")
+    public ResponseEntity<Map<String, Object>> getIngestMetrics() {
+        Map<String, Object> metrics = ingestMetrics.snapshot();
+        metrics.put("queue", ingestionPipeline.snapshot());
+        metrics.put("live", liveUpdateConflater.snapshot());
+        metrics.put("deviceSessions", deviceSessionManager.snapshot());
+        metrics.put("cluster", liveUpdateBackplane != null
+                ? liveUpdateBackplane.snapshot()
+                : Collections.singletonMap("mode", "single"));
+        return ResponseEntity.ok(metrics);
+    }
+
+    /**
+     * Every stream thread is busy and the queue is full; the client should retry later
+     */
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<String> handleStreamRejected(RejectedExecutionException e) {
+        log.warn("Rejected streamed response: {}", e.getMessage());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .body("Too many streams in progress. Please try again later.");
+    }
+
     @ExceptionHandler(Exception.class)
     public ResponseEntity<String> handleException(Exception e) {
         log.error("Unhandled exception: ", e);
@@ -0,0 +1,46 @@
+package com.gpstracker.model;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.datatype.jsr310.deser.LocalDateTimeDeserializer;
+import com.fasterxml.jackson.datatype.jsr310.ser.LocalDateTimeSerializer;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * An alert raised or cleared for a device. Stored and published instead of the full
+ * reading that triggered it.
+ */
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class AlertRecord {
+
+    public enum Severity {
+        INFO,
+        WARNING,
+        CRITICAL
+    }
+
+    public enum State {
+        RAISED,
+        CLEARED
+    }
+
+    private String deviceId;
+    private String type; // rule metric, GEOFENCE_ENTER/EXIT/DWELL or OFFLINE
+    private Severity severity;
+    private State state;
+
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'")
+    @JsonDeserialize(using = LocalDateTimeDeserializer.class)
+    @JsonSerialize(using = LocalDateTimeSerializer.class)
+    private LocalDateTime timestamp;
+
+    private double latitude;
+    private double longitude;
+    private double value; // the reading's value for the rule's metric
+    private String ruleId; // rule or geofence zone id
+}
@@ -0,0 +1,36 @@
+package com.gpstracker.model;
+
+import lombok.Data;
+
+/**
+ * A threshold rule on one reading field. An alert is raised once the value has been past
+ * threshold for minDurationSeconds, and cleared once it is back past clearThreshold; the
+ * gap between the two keeps a value hovering at the limit from flapping.
+ */
+@Data
+public class AlertRule {
+
+    public enum Metric {
+        SPEED,
+        BATTERY_LEVEL,
+        ACCURACY,
+        SIGNAL_STRENGTH,
+        TEMPERATURE,
+        HUMIDITY
+    }
+
+    public enum Condition {
+        ABOVE,
+        BELOW
+    }
+
+    private String id;
+    private Metric metric;
+    private Condition condition;
+    private double threshold;
+    private Double clearThreshold; // defaults to threshold (no hysteresis)
+    private long minDurationSeconds;
+    private long cooldownSeconds; // after clearing, no new alert from this rule for this long
+    private AlertRecord.Severity severity = AlertRecord.Severity.WARNING;
+    private boolean enabled = true;
+}
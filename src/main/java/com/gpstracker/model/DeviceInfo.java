@@ -0,0 +1,16 @@
+package com.gpstracker.model;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * A device registry entry
+ */
+@Data
+public class DeviceInfo {
+    private String deviceId;
+    private String fleetId; // null if the device is in no fleet
+    private LocalDateTime firstSeen;
+    private LocalDateTime lastSeen;
+}
@@ -0,0 +1,36 @@
+package com.gpstracker.model;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.datatype.jsr310.deser.LocalDateTimeDeserializer;
+import com.fasterxml.jackson.datatype.jsr310.ser.LocalDateTimeSerializer;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * A device crossing into, out of, or staying in a geofence zone
+ */
+@Data
+public class GeofenceEvent {
+
+    public enum Type {
+        ENTER,
+        EXIT,
+        DWELL
+    }
+
+    private String deviceId;
+    private String fleetId;
+    private String zoneId;
+    private Type type;
+
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'")
+    @JsonDeserialize(using = LocalDateTimeDeserializer.class)
+    @JsonSerialize(using = LocalDateTimeSerializer.class)
+    private LocalDateTime timestamp;
+
+    private double latitude;
+    private double longitude;
+}
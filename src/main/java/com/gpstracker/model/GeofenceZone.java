@@ -0,0 +1,32 @@
+package com.gpstracker.model;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * A circle or polygon zone shared by the devices of a fleet, or a device's own zone
+ */
+@Data
+public class GeofenceZone {
+
+    public enum Shape {
+        CIRCLE,
+        POLYGON
+    }
+
+    private String id;
+    private String fleetId; // null for a device's own zone
+    private String name;
+    private Shape shape;
+
+    // Circles
+    private double centerLat;
+    private double centerLon;
+    private double radius; // km
+
+    // Polygons: [lat, lon] pairs in order, implicitly closed
+    private List<double[]> vertices;
+
+    private long dwellSeconds; // DWELL is emitted after this long inside; 0 disables it
+}
@@ -0,0 +1,19 @@
+package com.gpstracker.model;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * A device's current position as returned by proximity queries
+ */
+@Data
+public class NearbyDevice {
+    private String deviceId;
+    private double latitude;
+    private double longitude;
+    private double speed;
+    private double heading;
+    private LocalDateTime timestamp;
+    private Double distance; // km from the query point; null for bounding box queries
+}
@@ -0,0 +1,19 @@
+package com.gpstracker.model;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * One bucket of a device's statistics series
+ */
+@Data
+public class RollupPoint {
+    private LocalDateTime bucket; // start of the bucket
+    private double distance; // km
+    private long points;
+    private long alerts;
+    private double maxSpeed;
+    private double avgSpeed;
+    private double idleSeconds;
+}
@@ -0,0 +1,115 @@
+package com.gpstracker.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gpstracker.model.GpsData;
+import com.gpstracker.service.ingest.IngestionPipeline;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+@Slf4j
+@Service
+public class BatchIngestService {
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private IngestionPipeline ingestionPipeline;
+
+    /**
+     * Reads a JSON array or an NDJSON stream of readings token by token and hands each
+     * one to the ingest pipeline, which groups them by device and saves them in batches.
+     * No reading is held here once it has been enqueued.
+     */
+    public BatchResult ingest(InputStream body) throws IOException {
+        BatchResult result = new BatchResult();
+
+        try (JsonParser parser = objectMapper.getFactory().createParser(body)) {
+            // An array is unwrapped; otherwise the body is a sequence of root-level objects (NDJSON)
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_ARRAY) {
+                token = parser.nextToken();
+            }
+
+            int index = 0;
+            while (token != null && token != JsonToken.END_ARRAY) {
+                ItemStatus status = new ItemStatus(index++);
+                result.items.add(status);
+
+                // Bind through a tree so a bad item does not desynchronise the parser
+                JsonNode node = parser.readValueAsTree();
+                GpsData gpsData = toGpsData(node, status);
+                if (gpsData != null) {
+                    if (ingestionPipeline.submit(gpsData)) {
+                        status.status = ItemStatus.ACCEPTED;
+                    } else {
+                        status.reject("Ingest queue full");
+                    }
+                }
+                token = parser.nextToken();
+            }
+        }
+
+        result.items.forEach(item -> {
+            if (ItemStatus.ACCEPTED.equals(item.status)) {
+                result.accepted++;
+            } else {
+                result.rejected++;
+            }
+        });
+        return result;
+    }
+
+    private GpsData toGpsData(JsonNode node, ItemStatus status) {
+        if (node == null || !node.isObject()) {
+            status.reject("Item is not a JSON object");
+            return null;
+        }
+
+        try {
+            GpsData gpsData = objectMapper.treeToValue(node, GpsData.class);
+            status.deviceId = gpsData.getDeviceId();
+            if (gpsData.getDeviceId() == null || gpsData.getDeviceId().isEmpty()) {
+                status.reject("Device ID not provided");
+                return null;
+            }
+            return gpsData;
+        } catch (JsonProcessingException e) {
+            status.reject("Invalid GPS data: " + e.getOriginalMessage());
+            return null;
+        }
+    }
+
+    @lombok.Data
+    public static class BatchResult {
+        private int accepted;
+        private int rejected;
+        private final List<ItemStatus> items = new ArrayList<>();
+    }
+
+    @lombok.Data
+    public static class ItemStatus {
+        static final String ACCEPTED = "accepted";
+        static final String REJECTED = "rejected";
+
+        private final int index;
+        private String deviceId;
+        private String status;
+        private String error;
+
+        void reject(String reason) {
+            status = REJECTED;
+            error = reason;
+        }
+    }
+}
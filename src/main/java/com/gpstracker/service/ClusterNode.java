@@ -0,0 +1,38 @@
+package com.gpstracker.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.UUID;
+
+/**
+ * This node's identity when gps.cluster.mode=redis. The id tags the live update events it
+ * publishes, so it can skip its own, and names it as the holder of its devices' ingest
+ * leases. Without gps.cluster.node-id a random id is drawn on every start, so a restarted
+ * node does not resume the devices it held before.
+ */
+@Component
+public class ClusterNode {
+
+    @Value("${gps.cluster.mode:single}")
+    private String mode;
+
+    @Value("${gps.cluster.node-id:}")
+    private String id;
+
+    @PostConstruct
+    public void start() {
+        if (id == null || id.isBlank()) {
+            id = UUID.randomUUID().toString();
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public boolean isClustered() {
+        return "redis".equals(mode);
+    }
+}
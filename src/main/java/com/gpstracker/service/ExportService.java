@@ -1,6 +1,7 @@
 package com.gpstracker.service;
 
 import com.gpstracker.model.GpsData;
+import com.gpstracker.service.registry.DeviceRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -12,6 +13,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
 
@@ -26,6 +28,9 @@ public class ExportService {
     @Autowired
     private GpsDataService gpsDataService;
 
+    @Autowired
+    private DeviceRegistry deviceRegistry;
+
     public String exportToCsv(String deviceId, LocalDateTime startTime, LocalDateTime endTime) throws IOException {
         // Create exports directory if it doesn't exist
         Path exportPath = Paths.get(EXPORT_DIR);
@@ -60,10 +65,10 @@ public class ExportService {
             Files.createDirectories(Paths.get(weeklyDir));
 
             // Calculate time range for the past week
-            LocalDateTime endTime = LocalDateTime.now();
+            LocalDateTime endTime = LocalDateTime.now(ZoneOffset.UTC);
             LocalDateTime startTime = endTime.minusWeeks(1);
 
-            // Export data for each known device
+            // Export data for each device active during the week
             exportDataForTimeRange(weeklyDir, startTime, endTime);
 
             log.info("Weekly export completed successfully");
@@ -72,22 +77,24 @@ public class ExportService {
         }
     }
 
-    private void exportDataForTimeRange(String directory, LocalDateTime startTime, LocalDateTime endTime) throws IOException {
-        // In a real application, you would maintain a list of active devices
-        // For this example, we'll export a sample device
-        String[] sampleDevices = {"device123", "device456"};
-        
-        for (String deviceId : sampleDevices) {
+    private void exportDataForTimeRange(String directory, LocalDateTime startTime, LocalDateTime endTime) throws InterruptedException {
+        // Only devices that reported in the range have anything to export
+        long exported = deviceRegistry.forEachActiveDevice(startTime, deviceId -> {
             String filename = String.format("%s/%s_%s.csv",
                 directory,
                 deviceId,
                 startTime.format(FILE_DATE_FORMAT)
             );
 
-            List<GpsData> data = gpsDataService.getGpsDataForDevice(deviceId, startTime, endTime);
-            writeDataToCsv(filename, data);
-            log.info("Exported data for device: {}", deviceId);
-        }
+            try {
+                List<GpsData> data = gpsDataService.getGpsDataForDevice(deviceId, startTime, endTime);
+                writeDataToCsv(filename, data);
+                log.debug("Exported data for device: {}", deviceId);
+            } catch (IOException e) {
+                log.error("Error exporting data for device {}: ", deviceId, e);
+            }
+        });
+        log.info("Exported data for {} devices", exported);
     }
 
     private void writeDataToCsv(String filename, List<GpsData> data) throws IOException {
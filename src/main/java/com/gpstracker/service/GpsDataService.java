@@ -1,17 +1,44 @@
 package com.gpstracker.service;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.gpstracker.model.AlertRecord;
+import com.gpstracker.model.GeofenceEvent;
 import com.gpstracker.model.GpsData;
+import com.gpstracker.model.RollupPoint;
+import com.gpstracker.service.alert.AlertRuleEngine;
+import com.gpstracker.service.alert.AlertService;
+import com.gpstracker.service.geofence.GeofenceService;
+import com.gpstracker.service.ingest.DeviceState;
+import com.gpstracker.service.ingest.ZoneVisit;
+import com.gpstracker.service.registry.DeviceRegistry;
+import com.gpstracker.service.rollup.RollupBucket;
+import com.gpstracker.service.rollup.RollupResolution;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands.SetOption;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.RedisZSetCommands.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Tuple;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.Duration;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -19,44 +46,470 @@ import java.util.stream.Collectors;
 public class GpsDataService {
 
     private static final String GPS_DATA_KEY_PREFIX = "gps:data:";
-    private static final String GEOFENCE_KEY_PREFIX = "gps:geofence:";
-    private static final String ALERT_KEY_PREFIX = "gps:alert:";
-    private static final String STATS_KEY_PREFIX = "gps:stats:";
+    private static final String TRACK_KEY_PREFIX = "gps:track:";
+    private static final String STATE_KEY_PREFIX = "gps:state:";
+    private static final String DEVICE_STATE_INDEX_KEY = "gps:state:devices";
+    private static final String OWNER_KEY_PREFIX = "gps:owner:";
+    // Daily stats hashes written before the rollups; only read as a fallback
+    private static final String LEGACY_STATS_KEY_PREFIX = "gps:stats:";
     private static final int DATA_RETENTION_DAYS = 7;
     
-    private static final double BATTERY_ALERT_THRESHOLD = 0.2; // 20%
-    private static final double SPEED_ALERT_THRESHOLD = 120.0; // km/h
-    private static final int OFFLINE_THRESHOLD_MINUTES = 5;
+    public static final int OFFLINE_THRESHOLD_MINUTES = 5;
+    private static final int MGET_CHUNK_SIZE = 500;
+    private static final double IDLE_SPEED_THRESHOLD = 2.0; // km/h
+    private static final int MAX_RANGE_BUCKETS = 5000;
+
+    // Atomic max so the read-then-put of maxSpeed cannot race between writers
+    private static final String MAX_SPEED_SCRIPT =
+        "local current = tonumber(redis.call('HGET', KEYS[1], 'maxSpeed')) " +
+        "if current == nil or tonumber(ARGV[1]) > current then " +
+        "redis.call('HSET', KEYS[1], 'maxSpeed', ARGV[1]) end " +
+        "return 0";
 
     @Autowired
     private RedisTemplate<String, GpsData> redisTemplate;
 
-    public void saveGpsData(GpsData gpsData) {
-        // Update device status
-        updateDeviceStatus(gpsData);
-        
-        // Check for alerts
-        checkAlerts(gpsData);
-        
-        // Check geofence
-        checkGeofence(gpsData);
-        
-        // Save data
-        String key = GPS_DATA_KEY_PREFIX + gpsData.getDeviceId() + ":" + 
-                    LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
-        
-        redisTemplate.opsForValue().set(key, gpsData);
-        redisTemplate.expire(key, DATA_RETENTION_DAYS, TimeUnit.DAYS);
-        
-        // Update statistics
-        updateStatistics(gpsData);
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private IngestMetrics ingestMetrics;
+
+    @Autowired
+    private GeofenceService geofenceService;
+
+    @Autowired
+    private AlertRuleEngine alertRuleEngine;
+
+    @Autowired
+    private AlertService alertService;
+
+    @Autowired
+    private DeviceRegistry deviceRegistry;
+
+    @Autowired
+    private ClusterNode clusterNode;
+
+    // Disambiguates readings from one device that share a millisecond
+    private final AtomicLong keySequence = new AtomicLong(ThreadLocalRandom.current().nextInt() & 0xffffL);
+
+    /**
+     * Saves a batch of readings using at most two Redis round trips: one pipeline to seed
+     * devices the partition has not seen yet, and one pipeline for every write.
+     *
+     * Called only from the ingest partition that owns the devices in the batch;
+     * deviceStates is that partition's private table, so it is read and updated
+     * without locks.
+     *
+     * Readings at or before their device's last fix are removed from batch and not stored,
+     * and their number is returned. The reorder window has normally caught them already;
+     * these got past it because the device's window was evicted or the node restarted, so
+     * like the window's expired readings they cannot be told apart from retransmissions.
+     *
+     * pendingAlerts holds records the partition raised since its last write, such as
+     * offline alerts; they are written and published ahead of the batch's own and removed.
+     */
+    public int saveGpsDataBatch(List<GpsData> batch, Map<String, DeviceState> deviceStates,
+                                List<AlertRecord> pendingAlerts) {
+        Map<String, List<GpsData>> readingsByDevice = groupByDevice(batch);
+        if (readingsByDevice.isEmpty()) {
+            return 0;
+        }
+
+        boolean seeded = seedDeviceStates(readingsByDevice.keySet(), deviceStates);
+        int stale = dropStale(batch, readingsByDevice, deviceStates);
+        if (readingsByDevice.isEmpty()) {
+            ingestMetrics.recordRoundTrips(seeded ? 1 : 0);
+            return stale;
+        }
+        int roundTrips = seeded ? 2 : 1;
+        List<GeofenceEvent> geofenceEvents = new ArrayList<>();
+        List<AlertRecord> alertRecords = new ArrayList<>(pendingAlerts);
+        int readings = 0;
+
+        for (Map.Entry<String, List<GpsData>> entry : readingsByDevice.entrySet()) {
+            DeviceState state = deviceStates.get(entry.getKey());
+
+            for (GpsData gpsData : entry.getValue()) {
+                if (state.isOfflineAlertRaised()) {
+                    alertRecords.add(offlineAlert(gpsData.getDeviceId(), gpsData, AlertRecord.State.CLEARED));
+                    state.setOfflineAlertRaised(false);
+                }
+
+                // Update device status
+                updateDeviceStatus(gpsData, state.getLastFix());
+
+                // Run the device's alert rules (records on raise/clear only)
+                alertRuleEngine.evaluate(gpsData, state, alertRecords);
+
+                // Check geofence zones (in memory, events on transitions only)
+                int eventsBefore = geofenceEvents.size();
+                geofenceService.evaluate(gpsData, state, geofenceEvents);
+                for (int i = eventsBefore; i < geofenceEvents.size(); i++) {
+                    alertRecords.add(toAlertRecord(geofenceEvents.get(i)));
+                }
+
+                // Update statistics rollups (flushed with the device state)
+                double distance = calculateDistanceFromLast(gpsData, state.getLastFix());
+                updateRollups(state, gpsData, distance);
+
+                state.recordFix(gpsData, distance);
+                readings++;
+            }
+        }
+
+        writeBatch(readingsByDevice, alertRecords);
+        pendingAlerts.clear();
+        ingestMetrics.recordRoundTrips(roundTrips);
+        ingestMetrics.recordSaved(readings);
+
+        if (!geofenceEvents.isEmpty()) {
+            geofenceService.publish(geofenceEvents);
+        }
+        if (!alertRecords.isEmpty()) {
+            alertService.publish(alertRecords);
+        }
+        return stale;
     }
 
-    private void updateDeviceStatus(GpsData gpsData) {
-        // Get last known data
-        String lastDataKey = getLastDataKey(gpsData.getDeviceId());
-        GpsData lastData = redisTemplate.opsForValue().get(lastDataKey);
-        
+    /**
+     * Removes readings at or before the device's last fix. Applying one would move lastFix
+     * back and count the jump to it and back again in the distance and the rollups.
+     */
+    private static int dropStale(List<GpsData> batch, Map<String, List<GpsData>> readingsByDevice,
+                                 Map<String, DeviceState> deviceStates) {
+        Set<GpsData> stale = Collections.newSetFromMap(new IdentityHashMap<>());
+        Iterator<Map.Entry<String, List<GpsData>>> it = readingsByDevice.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, List<GpsData>> entry = it.next();
+            GpsData lastFix = deviceStates.get(entry.getKey()).getLastFix();
+            if (lastFix == null || lastFix.getTimestamp() == null) {
+                continue;
+            }
+            entry.getValue().removeIf(gpsData -> !gpsData.getTimestamp().isAfter(lastFix.getTimestamp())
+                    && stale.add(gpsData));
+            if (entry.getValue().isEmpty()) {
+                it.remove();
+            }
+        }
+        if (!stale.isEmpty()) {
+            batch.removeIf(stale::contains);
+        }
+        return stale.size();
+    }
+
+    /**
+     * An OFFLINE alert record at the device's last known position. Stamped with server time,
+     * so a device that returns with buffered readings still clears after it was raised.
+     */
+    public static AlertRecord offlineAlert(String deviceId, GpsData position, AlertRecord.State state) {
+        AlertRecord record = new AlertRecord();
+        record.setDeviceId(deviceId);
+        record.setType("OFFLINE");
+        record.setSeverity(AlertRecord.Severity.WARNING);
+        record.setState(state);
+        record.setTimestamp(LocalDateTime.now(ZoneOffset.UTC));
+        if (position != null) {
+            record.setLatitude(position.getLatitude());
+            record.setLongitude(position.getLongitude());
+        }
+        return record;
+    }
+
+    private static AlertRecord toAlertRecord(GeofenceEvent event) {
+        AlertRecord record = new AlertRecord();
+        record.setDeviceId(event.getDeviceId());
+        record.setType("GEOFENCE_" + event.getType());
+        record.setSeverity(AlertRecord.Severity.INFO);
+        record.setState(AlertRecord.State.RAISED);
+        record.setTimestamp(event.getTimestamp());
+        record.setLatitude(event.getLatitude());
+        record.setLongitude(event.getLongitude());
+        record.setRuleId(event.getZoneId());
+        return record;
+    }
+
+    private Map<String, List<GpsData>> groupByDevice(List<GpsData> batch) {
+        Map<String, List<GpsData>> readingsByDevice = new LinkedHashMap<>();
+        for (GpsData gpsData : batch) {
+            if (gpsData.getDeviceId() == null) {
+                log.warn("Dropping GPS reading without device ID");
+                continue;
+            }
+            if (gpsData.getTimestamp() == null) {
+                gpsData.setTimestamp(LocalDateTime.now(ZoneOffset.UTC));
+            }
+            readingsByDevice.computeIfAbsent(gpsData.getDeviceId(), k -> new ArrayList<>()).add(gpsData);
+        }
+
+        readingsByDevice.values().forEach(readings -> readings.sort(Comparator.comparing(GpsData::getTimestamp)));
+        return readingsByDevice;
+    }
+
+    /**
+     * Seeds the state of devices the partition has not seen yet (neither rehydrated nor
+     * ingested since startup) from their last write-behind snapshot. Returns whether a
+     * Redis round trip was needed.
+     */
+    private boolean seedDeviceStates(Set<String> deviceIds, Map<String, DeviceState> deviceStates) {
+        List<String> unknownIds = deviceIds.stream()
+                .filter(deviceId -> !deviceStates.containsKey(deviceId))
+                .collect(Collectors.toList());
+        if (unknownIds.isEmpty()) {
+            return false;
+        }
+
+        // Raw bytes for GET (decoded with the GpsData serializer below), strings for the state hash
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String deviceId : unknownIds) {
+                connection.stringCommands().get(raw(getLastDataKey(deviceId)));
+                connection.hashCommands().hGetAll(raw(getStateKey(deviceId)));
+            }
+            return null;
+        }, null);
+
+        for (int i = 0; i < unknownIds.size(); i++) {
+            deviceStates.put(unknownIds.get(i), toDeviceState(results.get(2 * i), results.get(2 * i + 1)));
+        }
+        return true;
+    }
+
+    private void writeBatch(Map<String, List<GpsData>> readingsByDevice, List<AlertRecord> alertRecords) {
+        RedisSerializer<GpsData> serializer = dataSerializer();
+        Expiration retention = Expiration.from(DATA_RETENTION_DAYS, TimeUnit.DAYS);
+        long retentionSeconds = TimeUnit.DAYS.toSeconds(DATA_RETENTION_DAYS);
+
+        long trimBefore = toEpochMillis(LocalDateTime.now(ZoneOffset.UTC).minusDays(DATA_RETENTION_DAYS));
+        byte[] leaseHolder = clusterNode.isClustered() ? raw(clusterNode.getId()) : null;
+
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, List<GpsData>> entry : readingsByDevice.entrySet()) {
+                byte[] trackKey = raw(getTrackKey(entry.getKey()));
+                if (leaseHolder != null) {
+                    // This node now ingests the device; another node holding it lets go at its offline deadline
+                    connection.stringCommands().set(raw(getOwnerKey(entry.getKey())), leaseHolder, retention, SetOption.upsert());
+                }
+
+                for (GpsData gpsData : entry.getValue()) {
+                    byte[] value = serializer.serialize(gpsData);
+                    long epochMillis = toEpochMillis(gpsData.getTimestamp());
+
+                    // Save data and index it by device time
+                    byte[] dataKey = raw(getDataKey(gpsData.getDeviceId(), epochMillis));
+                    connection.stringCommands().set(dataKey, value, retention, SetOption.upsert());
+                    connection.zSetCommands().zAdd(trackKey, epochMillis, dataKey);
+                }
+
+                // Index entries outlive their data keys unless trimmed with them
+                connection.zSetCommands().zRemRangeByScore(trackKey, Double.NEGATIVE_INFINITY, trimBefore);
+                connection.keyCommands().expire(trackKey, retentionSeconds);
+            }
+
+            alertService.write(connection, alertRecords);
+            return null;
+        });
+    }
+
+    /**
+     * Stores readings in the raw data and track index only, in one pipeline. Used for
+     * readings that arrived too late to be applied to state and statistics in order.
+     */
+    public void saveTrackOnly(List<GpsData> readings) {
+        RedisSerializer<GpsData> serializer = dataSerializer();
+        Expiration retention = Expiration.from(DATA_RETENTION_DAYS, TimeUnit.DAYS);
+
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (GpsData gpsData : readings) {
+                long epochMillis = toEpochMillis(gpsData.getTimestamp());
+                byte[] dataKey = raw(getDataKey(gpsData.getDeviceId(), epochMillis));
+                connection.stringCommands().set(dataKey, serializer.serialize(gpsData), retention, SetOption.upsert());
+                connection.zSetCommands().zAdd(raw(getTrackKey(gpsData.getDeviceId())), epochMillis, dataKey);
+            }
+            return null;
+        });
+        ingestMetrics.recordRoundTrips(1);
+        ingestMetrics.recordSaved(readings.size());
+    }
+
+    /**
+     * Write-behind flush of a partition's dirty device states in one pipeline: the
+     * last fix under gps:data:<id>:last, running totals under gps:state:<id> and the
+     * statistics accumulated since the last flush into the gps:rollup:* hashes. Alert
+     * records still pending in the partition are written and published with them.
+     */
+    public void flushDeviceStates(Map<String, DeviceState> deviceStates, List<AlertRecord> pendingAlerts) {
+        List<Map.Entry<String, DeviceState>> dirty = deviceStates.entrySet().stream()
+                .filter(entry -> entry.getValue().isDirty() && entry.getValue().getLastFix() != null)
+                .collect(Collectors.toList());
+        if (dirty.isEmpty() && pendingAlerts.isEmpty()) {
+            return;
+        }
+        List<AlertRecord> alertRecords = new ArrayList<>(pendingAlerts);
+
+        RedisSerializer<GpsData> serializer = dataSerializer();
+        Expiration retention = Expiration.from(DATA_RETENTION_DAYS, TimeUnit.DAYS);
+        long retentionSeconds = TimeUnit.DAYS.toSeconds(DATA_RETENTION_DAYS);
+
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, DeviceState> entry : dirty) {
+                DeviceState state = entry.getValue();
+                byte[] stateKey = raw(getStateKey(entry.getKey()));
+
+                connection.stringCommands().set(raw(getLastDataKey(entry.getKey())),
+                        serializer.serialize(state.getLastFix()), retention, SetOption.upsert());
+                connection.hashCommands().hMSet(stateKey, toStateHash(state));
+                connection.keyCommands().expire(stateKey, retentionSeconds);
+                connection.setCommands().sAdd(raw(DEVICE_STATE_INDEX_KEY), raw(entry.getKey()));
+                deviceRegistry.write(connection, entry.getKey(), state.getLastFix().getTimestamp());
+
+                for (RollupBucket rollup : state.getPendingRollups()) {
+                    writeRollup(connection, entry.getKey(), rollup);
+                }
+            }
+
+            alertService.write(connection, alertRecords);
+            return null;
+        });
+
+        dirty.forEach(entry -> {
+            entry.getValue().setDirty(false);
+            entry.getValue().getPendingRollups().clear();
+        });
+        pendingAlerts.clear();
+        ingestMetrics.recordRoundTrips(1);
+        if (!alertRecords.isEmpty()) {
+            alertService.publish(alertRecords);
+        }
+    }
+
+    /**
+     * Loads every device state written by flushDeviceStates, used to rehydrate the
+     * ingest partitions on startup. With gps.cluster.mode=redis only the devices whose
+     * ingest lease this node holds are loaded.
+     */
+    public Map<String, DeviceState> loadDeviceStates() {
+        Set<String> deviceIds = stringRedisTemplate.opsForSet().members(DEVICE_STATE_INDEX_KEY);
+        Map<String, DeviceState> deviceStates = new HashMap<>();
+        if (deviceIds == null || deviceIds.isEmpty()) {
+            return deviceStates;
+        }
+
+        List<String> orderedIds = new ArrayList<>(deviceIds);
+        List<String> expired = new ArrayList<>();
+        boolean clustered = clusterNode.isClustered();
+        int stride = clustered ? 3 : 2;
+        for (int from = 0; from < orderedIds.size(); from += MGET_CHUNK_SIZE) {
+            List<String> chunk = orderedIds.subList(from, Math.min(from + MGET_CHUNK_SIZE, orderedIds.size()));
+            List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String deviceId : chunk) {
+                    connection.stringCommands().get(raw(getLastDataKey(deviceId)));
+                    connection.hashCommands().hGetAll(raw(getStateKey(deviceId)));
+                    if (clustered) {
+                        connection.stringCommands().get(raw(getOwnerKey(deviceId)));
+                    }
+                }
+                return null;
+            }, null);
+
+            for (int i = 0; i < chunk.size(); i++) {
+                DeviceState state = toDeviceState(results.get(stride * i), results.get(stride * i + 1));
+                if (state.getLastFix() == null) {
+                    expired.add(chunk.get(i));
+                } else if (!clustered || clusterNode.getId().equals(string(results.get(stride * i + 2)))) {
+                    deviceStates.put(chunk.get(i), state);
+                }
+            }
+        }
+
+        if (!expired.isEmpty()) {
+            stringRedisTemplate.opsForSet().remove(DEVICE_STATE_INDEX_KEY, expired.toArray());
+        }
+        return deviceStates;
+    }
+
+    /**
+     * Of the given devices, those whose ingest lease another node holds. Used by a partition
+     * to hand over a device whose offline deadline passed because it now reports elsewhere.
+     */
+    public Set<String> leasedElsewhere(List<String> deviceIds) {
+        List<Object> holders = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String deviceId : deviceIds) {
+                connection.stringCommands().get(raw(getOwnerKey(deviceId)));
+            }
+            return null;
+        }, null);
+
+        Set<String> elsewhere = new HashSet<>();
+        for (int i = 0; i < deviceIds.size(); i++) {
+            String holder = string(holders.get(i));
+            if (holder != null && !holder.equals(clusterNode.getId())) {
+                elsewhere.add(deviceIds.get(i));
+            }
+        }
+        return elsewhere;
+    }
+
+    private static String string(Object value) {
+        return value instanceof byte[] ? new String((byte[]) value, StandardCharsets.UTF_8) : null;
+    }
+
+    private DeviceState toDeviceState(Object lastData, Object stateHash) {
+        DeviceState state = new DeviceState();
+        state.setLastFix(lastData instanceof byte[] ? dataSerializer().deserialize((byte[]) lastData) : null);
+
+        if (stateHash instanceof Map) {
+            Map<String, String> fields = castStringHash(stateHash);
+            state.setStatus(fields.get("status"));
+            state.setTotalDistance(Double.parseDouble(fields.getOrDefault("totalDistance", "0")));
+            state.setMaxSpeed(Double.parseDouble(fields.getOrDefault("maxSpeed", "0")));
+            state.setOfflineAlertRaised(Boolean.parseBoolean(fields.get("offlineAlert")));
+            parseZoneVisits(fields.get("zones"), state.getZoneVisits());
+        }
+        return state;
+    }
+
+    private static Map<byte[], byte[]> toStateHash(DeviceState state) {
+        Map<byte[], byte[]> hash = new HashMap<>();
+        if (state.getStatus() != null) {
+            hash.put(raw("status"), raw(state.getStatus()));
+        }
+        hash.put(raw("totalDistance"), raw(Double.toString(state.getTotalDistance())));
+        hash.put(raw("maxSpeed"), raw(Double.toString(state.getMaxSpeed())));
+        // So the reading that ends an outage clears its alert after a restart too
+        hash.put(raw("offlineAlert"), raw(Boolean.toString(state.isOfflineAlertRaised())));
+        hash.put(raw("lastSeen"), raw(state.getLastFix().getTimestamp().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME)));
+        // Kept so a restart does not report every device as entering its zones again
+        hash.put(raw("zones"), raw(formatZoneVisits(state.getZoneVisits())));
+        return hash;
+    }
+
+    /**
+     * zoneId|enteredAt|dwellReported entries separated by commas; zone ids contain neither
+     */
+    private static String formatZoneVisits(Map<String, ZoneVisit> visits) {
+        StringBuilder zones = new StringBuilder();
+        visits.forEach((zoneId, visit) -> {
+            if (zones.length() > 0) {
+                zones.append(',');
+            }
+            zones.append(zoneId).append('|').append(visit.getEnteredAt()).append('|').append(visit.isDwellReported() ? 1 : 0);
+        });
+        return zones.toString();
+    }
+
+    private static void parseZoneVisits(String zones, Map<String, ZoneVisit> visits) {
+        if (zones == null || zones.isEmpty()) {
+            return;
+        }
+        for (String entry : zones.split(",")) {
+            String[] parts = entry.split("\\|");
+            if (parts.length == 3) {
+                visits.put(parts[0], new ZoneVisit(Long.parseLong(parts[1]), "1".equals(parts[2])));
+            }
+        }
+    }
+
+    private void updateDeviceStatus(GpsData gpsData, GpsData lastData) {
         if (lastData != null) {
             Duration timeSinceLastUpdate = Duration.between(lastData.getTimestamp(), gpsData.getTimestamp());
             
@@ -70,41 +523,6 @@ public class GpsDataService {
         }
     }
 
-    private void checkAlerts(GpsData gpsData) {
-        // Battery alert
-        gpsData.setLowBattery(gpsData.getBatteryLevel() < BATTERY_ALERT_THRESHOLD);
-        
-        // Speed alert
-        gpsData.setSpeedAlert(gpsData.getSpeed() > SPEED_ALERT_THRESHOLD);
-        
-        // Malfunction alert (based on accuracy and signal strength)
-        gpsData.setMalfunctionAlert(gpsData.getAccuracy() > 100 || gpsData.getSignalStrength() < 2);
-        
-        if (gpsData.isLowBattery() || gpsData.isSpeedAlert() || gpsData.isMalfunctionAlert()) {
-            String alertKey = ALERT_KEY_PREFIX + gpsData.getDeviceId();
-            redisTemplate.opsForList().leftPush(alertKey, gpsData);
-            redisTemplate.expire(alertKey, DATA_RETENTION_DAYS, TimeUnit.DAYS);
-        }
-    }
-
-    private void checkGeofence(GpsData gpsData) {
-        String geofenceKey = GEOFENCE_KEY_PREFIX + gpsData.getDeviceId();
-        Map<Object, Object> geofenceData = redisTemplate.opsForHash().entries(geofenceKey);
-        
-        if (!geofenceData.isEmpty()) {
-            double centerLat = Double.parseDouble(geofenceData.get("centerLat").toString());
-            double centerLon = Double.parseDouble(geofenceData.get("centerLon").toString());
-            double radius = Double.parseDouble(geofenceData.get("radius").toString());
-            
-            double distance = calculateDistance(
-                centerLat, centerLon,
-                gpsData.getLatitude(), gpsData.getLongitude()
-            );
-            
-            gpsData.setGeofenceAlert(distance > radius);
-        }
-    }
-
     private double calculateDistance(double lat1, double lon1, double lat2, double lon2) {
         final int R = 6371; // Earth's radius in kilometers
         
@@ -120,28 +538,46 @@ public class GpsDataService {
         return R * c;
     }
 
-    private void updateStatistics(GpsData gpsData) {
-        String statsKey = STATS_KEY_PREFIX + gpsData.getDeviceId() + ":" 
-                         + gpsData.getTimestamp().format(DateTimeFormatter.ISO_LOCAL_DATE);
-        
-        redisTemplate.opsForHash().increment(statsKey, "totalDistance", calculateDistanceFromLast(gpsData));
-        redisTemplate.opsForHash().increment(statsKey, "dataPoints", 1);
-        redisTemplate.opsForHash().increment(statsKey, "alerts", 
-            (gpsData.isLowBattery() || gpsData.isSpeedAlert() || gpsData.isGeofenceAlert()) ? 1 : 0);
-        
-        // Update max speed
-        Double currentMaxSpeed = (Double) redisTemplate.opsForHash().get(statsKey, "maxSpeed");
-        if (currentMaxSpeed == null || gpsData.getSpeed() > currentMaxSpeed) {
-            redisTemplate.opsForHash().put(statsKey, "maxSpeed", gpsData.getSpeed());
+    private void updateRollups(DeviceState state, GpsData gpsData, double distance) {
+        double idleSeconds = idleSecondsSince(state.getLastFix(), gpsData);
+        boolean alert = gpsData.isLowBattery() || gpsData.isSpeedAlert() || gpsData.isGeofenceAlert();
+
+        for (RollupResolution resolution : RollupResolution.values()) {
+            state.rollup(resolution, resolution.bucketOf(gpsData.getTimestamp()))
+                    .add(distance, gpsData.getSpeed(), alert, idleSeconds);
         }
-        
-        redisTemplate.expire(statsKey, DATA_RETENTION_DAYS, TimeUnit.DAYS);
     }
 
-    private double calculateDistanceFromLast(GpsData gpsData) {
-        String lastDataKey = getLastDataKey(gpsData.getDeviceId());
-        GpsData lastData = redisTemplate.opsForValue().get(lastDataKey);
-        
+    /**
+     * Time spent standing still since the previous fix. Gaps longer than the offline
+     * threshold are not counted; the device was not reporting, so its state is unknown.
+     */
+    private double idleSecondsSince(GpsData lastData, GpsData gpsData) {
+        if (lastData == null || lastData.getTimestamp() == null
+                || lastData.getSpeed() >= IDLE_SPEED_THRESHOLD || gpsData.getSpeed() >= IDLE_SPEED_THRESHOLD) {
+            return 0;
+        }
+        long gapMillis = Duration.between(lastData.getTimestamp(), gpsData.getTimestamp()).toMillis();
+        if (gapMillis <= 0 || gapMillis > TimeUnit.MINUTES.toMillis(OFFLINE_THRESHOLD_MINUTES)) {
+            return 0;
+        }
+        return gapMillis / 1000.0;
+    }
+
+    private void writeRollup(RedisConnection connection, String deviceId, RollupBucket rollup) {
+        byte[] key = raw(rollup.getResolution().key(deviceId, rollup.getBucket()));
+        connection.hashCommands().hIncrBy(key, raw("distance"), rollup.getDistance());
+        connection.hashCommands().hIncrBy(key, raw("points"), rollup.getPoints());
+        connection.hashCommands().hIncrBy(key, raw("alerts"), rollup.getAlerts());
+        connection.hashCommands().hIncrBy(key, raw("speedSum"), rollup.getSpeedSum());
+        connection.hashCommands().hIncrBy(key, raw("idleSeconds"), rollup.getIdleSeconds());
+        // Server-side compare-and-set, so flushes from different nodes cannot lose a higher max speed
+        connection.scriptingCommands().eval(raw(MAX_SPEED_SCRIPT), ReturnType.INTEGER, 1,
+                key, raw(Double.toString(rollup.getMaxSpeed())));
+        connection.keyCommands().expire(key, rollup.getResolution().getRetention().getSeconds());
+    }
+
+    private double calculateDistanceFromLast(GpsData gpsData, GpsData lastData) {
         if (lastData != null) {
             return calculateDistance(
                 lastData.getLatitude(), lastData.getLongitude(),
@@ -155,50 +591,205 @@ public class GpsDataService {
         return GPS_DATA_KEY_PREFIX + deviceId + ":last";
     }
 
+    private String getStateKey(String deviceId) {
+        return STATE_KEY_PREFIX + deviceId;
+    }
+
+    private String getOwnerKey(String deviceId) {
+        return OWNER_KEY_PREFIX + deviceId;
+    }
+
+    private String getDataKey(String deviceId, long epochMillis) {
+        return GPS_DATA_KEY_PREFIX + deviceId + ":" + epochMillis + "-" + keySequence.incrementAndGet();
+    }
+
+    private String getTrackKey(String deviceId) {
+        return TRACK_KEY_PREFIX + deviceId;
+    }
+
+    private static long toEpochMillis(LocalDateTime timestamp) {
+        return timestamp.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    @SuppressWarnings("unchecked")
+    private RedisSerializer<GpsData> dataSerializer() {
+        return (RedisSerializer<GpsData>) redisTemplate.getValueSerializer();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, String> castStringHash(Object hash) {
+        return (Map<String, String>) hash;
+    }
+
+    private static byte[] raw(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * One day's totals, read from the day rollup under the field names this endpoint has
+     * always returned
+     */
     public Map<String, Object> getDeviceStatistics(String deviceId, LocalDateTime date) {
-        String statsKey = STATS_KEY_PREFIX + deviceId + ":" + date.format(DateTimeFormatter.ISO_LOCAL_DATE);
-        Map<Object, Object> rawData = redisTemplate.opsForHash().entries(statsKey);
-        
-        // Convert Map<Object, Object> to Map<String, Object>
+        String rollupKey = RollupResolution.DAY.key(deviceId, RollupResolution.DAY.bucketOf(date));
+        Map<String, String> rawData = stringRedisTemplate.<String, String>opsForHash().entries(rollupKey);
+
         Map<String, Object> result = new HashMap<>();
-        rawData.forEach((key, value) -> result.put(key.toString(), value));
+        if (rawData.isEmpty()) {
+            // Days recorded before the rollups existed
+            String statsKey = LEGACY_STATS_KEY_PREFIX + deviceId + ":" + date.format(DateTimeFormatter.ISO_LOCAL_DATE);
+            stringRedisTemplate.<String, String>opsForHash().entries(statsKey)
+                    .forEach((key, value) -> result.put(key, Double.valueOf(value)));
+            return result;
+        }
+
+        RollupPoint day = toRollupPoint(RollupResolution.DAY.startOf(RollupResolution.DAY.bucketOf(date)), rawData);
+        result.put("totalDistance", day.getDistance());
+        result.put("dataPoints", (double) day.getPoints());
+        result.put("alerts", (double) day.getAlerts());
+        result.put("maxSpeed", day.getMaxSpeed());
+        result.put("averageSpeed", day.getAvgSpeed());
+        result.put("idleSeconds", day.getIdleSeconds());
         return result;
     }
 
+    /**
+     * A device's statistics series between two times at one resolution, read in
+     * pipelined chunks. Buckets without readings are left out.
+     */
+    public List<RollupPoint> getStatisticsRange(String deviceId, LocalDateTime startTime, LocalDateTime endTime,
+                                                RollupResolution resolution) {
+        long firstBucket = resolution.bucketOf(startTime);
+        long lastBucket = resolution.bucketOf(endTime);
+        if (lastBucket < firstBucket) {
+            throw new IllegalArgumentException("endTime is before startTime");
+        }
+        if (lastBucket - firstBucket + 1 > MAX_RANGE_BUCKETS) {
+            throw new IllegalArgumentException("Range spans more than " + MAX_RANGE_BUCKETS + " "
+                    + resolution.name().toLowerCase(Locale.ROOT) + " buckets; use a coarser resolution");
+        }
+
+        List<RollupPoint> series = new ArrayList<>();
+        for (long chunkStart = firstBucket; chunkStart <= lastBucket; chunkStart += MGET_CHUNK_SIZE) {
+            long from = chunkStart;
+            long to = Math.min(lastBucket, chunkStart + MGET_CHUNK_SIZE - 1);
+
+            List<Object> hashes = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (long bucket = from; bucket <= to; bucket++) {
+                    connection.hashCommands().hGetAll(raw(resolution.key(deviceId, bucket)));
+                }
+                return null;
+            });
+
+            for (int i = 0; i < hashes.size(); i++) {
+                Object hash = hashes.get(i);
+                if (hash instanceof Map && !((Map<?, ?>) hash).isEmpty()) {
+                    series.add(toRollupPoint(resolution.startOf(from + i), castStringHash(hash)));
+                }
+            }
+        }
+        return series;
+    }
+
+    private static RollupPoint toRollupPoint(LocalDateTime bucketStart, Map<String, String> hash) {
+        RollupPoint point = new RollupPoint();
+        point.setBucket(bucketStart);
+        point.setDistance(Double.parseDouble(hash.getOrDefault("distance", "0")));
+        point.setPoints(Long.parseLong(hash.getOrDefault("points", "0")));
+        point.setAlerts(Long.parseLong(hash.getOrDefault("alerts", "0")));
+        point.setMaxSpeed(Double.parseDouble(hash.getOrDefault("maxSpeed", "0")));
+        point.setIdleSeconds(Double.parseDouble(hash.getOrDefault("idleSeconds", "0")));
+        double speedSum = Double.parseDouble(hash.getOrDefault("speedSum", "0"));
+        point.setAvgSpeed(point.getPoints() > 0 ? speedSum / point.getPoints() : 0);
+        return point;
+    }
+
+    /**
+     * Returns the readings in (startTime, endTime) in time order: one ZRANGEBYSCORE on the
+     * device's track index, then one pipeline of MGETs for the matching data keys.
+     */
     public List<GpsData> getGpsDataForDevice(String deviceId, LocalDateTime startTime, LocalDateTime endTime) {
-        String keyPattern = GPS_DATA_KEY_PREFIX + deviceId + ":*";
-        Set<String> keys = redisTemplate.keys(keyPattern);
-        
-        return keys.stream()
-                  .map(key -> redisTemplate.opsForValue().get(key))
-                  .filter(data -> {
-                      LocalDateTime timestamp = data.getTimestamp();
-                      return timestamp.isAfter(startTime) && timestamp.isBefore(endTime);
-                  })
-                  .sorted(Comparator.comparing(GpsData::getTimestamp))
-                  .collect(Collectors.toList());
-    }
-
-    public List<GpsData> getAlerts(String deviceId, LocalDateTime startTime, LocalDateTime endTime) {
-        String alertKey = ALERT_KEY_PREFIX + deviceId;
-        return Optional.ofNullable(redisTemplate.opsForList().range(alertKey, 0, -1))
-                .orElse(Collections.emptyList())
-                .stream()
-                .filter(data -> {
-                    LocalDateTime timestamp = data.getTimestamp();
-                    return timestamp.isAfter(startTime) && timestamp.isBefore(endTime);
-                })
-                .collect(Collectors.toList());
+        Range range = Range.range()
+                .gt(toEpochMillis(startTime))
+                .lt(toEpochMillis(endTime));
+        Set<String> dataKeys = stringRedisTemplate.execute((RedisCallback<Set<String>>) connection -> {
+            Set<byte[]> keys = connection.zSetCommands().zRangeByScore(raw(getTrackKey(deviceId)), range);
+            Set<String> result = new LinkedHashSet<>();
+            if (keys != null) {
+                keys.forEach(key -> result.add(new String(key, StandardCharsets.UTF_8)));
+            }
+            return result;
+        });
+
+        if (dataKeys == null || dataKeys.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return multiGet(new ArrayList<>(dataKeys));
     }
 
-    public void setGeofence(String deviceId, double centerLat, double centerLon, double radius) {
-        String geofenceKey = GEOFENCE_KEY_PREFIX + deviceId;
-        Map<String, Object> geofence = new HashMap<>();
-        geofence.put("centerLat", centerLat);
-        geofence.put("centerLon", centerLon);
-        geofence.put("radius", radius);
-        
-        redisTemplate.opsForHash().putAll(geofenceKey, geofence);
+    /**
+     * Prepares a chunked read of a device's readings between two times (exclusive), in
+     * time order. The cursor and limit are checked here, before a response is committed;
+     * the track itself is only read when the returned stream is written.
+     *
+     * @param cursor nextCursor of the previous page, or null to start at startTime
+     * @param limit  readings to return before handing out a cursor, 0 for no limit
+     */
+    public TrackStream openTrackStream(String deviceId, LocalDateTime startTime, LocalDateTime endTime,
+                                       String cursor, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        long[] position = cursor != null ? decodeTrackCursor(cursor) : null;
+        return new TrackStream(deviceId, toEpochMillis(startTime), toEpochMillis(endTime), position, limit);
+    }
+
+    private static String encodeTrackCursor(long score, long skip) {
+        String position = score + ":" + skip;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long[] decodeTrackCursor(String cursor) {
+        try {
+            String[] position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":");
+            long[] decoded = { Long.parseLong(position[0]), Long.parseLong(position[1]) };
+            if (decoded[1] < 0) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+            return decoded;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+
+    private List<GpsData> multiGet(List<String> dataKeys) {
+        List<Object> chunks = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int from = 0; from < dataKeys.size(); from += MGET_CHUNK_SIZE) {
+                List<String> chunk = dataKeys.subList(from, Math.min(from + MGET_CHUNK_SIZE, dataKeys.size()));
+                connection.stringCommands().mGet(chunk.stream().map(GpsDataService::raw).toArray(byte[][]::new));
+            }
+            return null;
+        }, null);
+
+        RedisSerializer<GpsData> serializer = dataSerializer();
+        List<GpsData> result = new ArrayList<>(dataKeys.size());
+        for (Object chunk : chunks) {
+            for (Object value : (List<?>) chunk) {
+                // Keys that expired after the index was read come back as null
+                if (value instanceof byte[]) {
+                    result.add(serializer.deserialize((byte[]) value));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The original single circle per device (radius in km), now kept as the device's own
+     * geofence zone
+     */
+    public void setGeofence(String deviceId, double centerLat, double centerLon, double radius)
+            throws JsonProcessingException {
+        geofenceService.setDeviceCircle(deviceId, centerLat, centerLon, radius);
     }
 
     @Scheduled(cron = "0 0 0 * * 0") // Run at midnight every Sunday
@@ -206,4 +797,86 @@ public class GpsDataService {
         log.info("Starting weekly GPS data export");
         // Implementation for weekly export will be added
     }
+
+    @FunctionalInterface
+    public interface TrackSink {
+        void accept(List<GpsData> chunk) throws IOException;
+    }
+
+    /**
+     * One page of a track, read from the track index MGET_CHUNK_SIZE readings at a time so
+     * only a chunk is ever held in memory. The cursor is the score of the last reading
+     * returned and how many readings with that score were returned, base64 encoded.
+     */
+    public final class TrackStream {
+        private final String trackKey;
+        private final long endMillis;
+        private final int limit;
+        private long score;
+        private long skip;
+        private boolean started;
+
+        private TrackStream(String deviceId, long startMillis, long endMillis, long[] position, int limit) {
+            this.trackKey = getTrackKey(deviceId);
+            this.endMillis = endMillis;
+            this.limit = limit;
+            this.score = position != null ? position[0] : startMillis;
+            this.skip = position != null ? position[1] : 0;
+            this.started = position != null;
+        }
+
+        /**
+         * Hands the readings to sink chunk by chunk and returns the cursor of the next page,
+         * or null once the range is exhausted
+         */
+        public String writeTo(TrackSink sink) throws IOException {
+            byte[] key = raw(trackKey);
+            int remaining = limit > 0 ? limit : Integer.MAX_VALUE;
+
+            while (true) {
+                // One reading past the limit tells whether another page exists
+                int count = (int) Math.min(MGET_CHUNK_SIZE, remaining + 1L);
+                Range range = started
+                        ? Range.range().gte(score).lt(endMillis)
+                        : Range.range().gt(score).lt(endMillis);
+                Limit window = Limit.limit().offset((int) skip).count(count);
+                Set<Tuple> entries = stringRedisTemplate.execute((RedisCallback<Set<Tuple>>) connection ->
+                        connection.zSetCommands().zRangeByScoreWithScores(key, range, window));
+                if (entries == null) {
+                    entries = Collections.emptySet();
+                }
+
+                int take = Math.min(entries.size(), remaining);
+                List<String> dataKeys = new ArrayList<>(take);
+                for (Tuple entry : entries) {
+                    if (dataKeys.size() == take) {
+                        break;
+                    }
+                    long entryScore = entry.getScore().longValue();
+                    if (started && entryScore == score) {
+                        skip++;
+                    } else {
+                        score = entryScore;
+                        skip = 1;
+                        started = true;
+                    }
+                    dataKeys.add(new String(entry.getValue(), StandardCharsets.UTF_8));
+                }
+                if (!dataKeys.isEmpty()) {
+                    sink.accept(multiGet(dataKeys));
+                }
+                remaining -= take;
+
+                if (entries.size() > take) {
+                    return encodeTrackCursor(score, skip);
+                }
+                if (entries.size() < count) {
+                    return null;
+                }
+                if (remaining == 0) {
+                    return encodeTrackCursor(score, skip);
+                }
+            }
+        }
+    }
 }
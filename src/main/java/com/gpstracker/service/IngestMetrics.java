@@ -0,0 +1,36 @@
+package com.gpstracker.service;
+
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free counters for the ingest path, exposed through /api/gps/metrics
+ */
+@Component
+public class IngestMetrics {
+
+    private final LongAdder readingsSaved = new LongAdder();
+    private final LongAdder redisRoundTrips = new LongAdder();
+
+    public void recordSaved(int readings) {
+        readingsSaved.add(readings);
+    }
+
+    public void recordRoundTrips(int roundTrips) {
+        redisRoundTrips.add(roundTrips);
+    }
+
+    public Map<String, Object> snapshot() {
+        long saved = readingsSaved.sum();
+        long roundTrips = redisRoundTrips.sum();
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("readingsSaved", saved);
+        metrics.put("redisRoundTrips", roundTrips);
+        metrics.put("roundTripsPerReading", saved == 0 ? 0.0 : (double) roundTrips / saved);
+        return metrics;
+    }
+}
@@ -6,9 +6,13 @@ import org.springframework.stereotype.Service;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.*;
 import java.time.temporal.ChronoUnit;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Slf4j
 @Service
@@ -16,9 +20,12 @@ public class PredictionService {
     
     @Autowired
     private com.gpstracker.service.GpsDataService gpsDataService;
+
+    @Autowired
+    private com.gpstracker.service.registry.DeviceRegistry deviceRegistry;
     
     private Map<String, List<PredictedRoute>> routePredictions = new HashMap<>();
-    private Map<String, MovementPattern> devicePatterns = new HashMap<>();
+    private Map<String, MovementPattern> devicePatterns = new ConcurrentHashMap<>();
 
     /**
      * Predicts the likely route for a device based on historical patterns
@@ -107,30 +114,38 @@ public class PredictionService {
     }
 
     /**
-     * Updates movement patterns based on new data
+     * Updates movement patterns based on new data. Each device's month is folded over the
+     * chunked track stream rather than loaded whole, so a batch thread holds one chunk of
+     * readings at a time: twice, because the spread is measured from the centre of all of them.
      */
     @Scheduled(cron = "0 0 * * * *") // Run hourly
     public void updateMovementPatterns() {
         log.info("Updating movement patterns");
         
         // Get data for the last 30 days for pattern analysis
-        LocalDateTime endTime = LocalDateTime.now();
+        LocalDateTime endTime = LocalDateTime.now(ZoneOffset.UTC);
         LocalDateTime startTime = endTime.minus(30, ChronoUnit.DAYS);
         
-        // For each known device
-        Set<String> knownDevices = new HashSet<>(); // In production, this would come from a device registry
-        knownDevices.add("device123"); // Example device
-        
-        for (String deviceId : knownDevices) {
-            List<GpsData> monthData = gpsDataService.getGpsDataForDevice(deviceId, startTime, endTime);
-            
-            MovementPattern pattern = new MovementPattern();
-            pattern.averageSpeed = calculateAverageSpeed(monthData);
-            pattern.commonLocations = findCommonLocations(monthData);
-            pattern.activeHours = analyzeActiveHours(monthData);
-            pattern.maxDeviation = calculateMaxDeviation(monthData);
-            
-            devicePatterns.put(deviceId, pattern);
+        // For each device that reported in that window, spread over the registry's batch threads
+        try {
+            long updated = deviceRegistry.forEachActiveDevice(startTime, deviceId -> {
+                PatternBuilder builder = new PatternBuilder();
+                try {
+                    gpsDataService.openTrackStream(deviceId, startTime, endTime, null, 0).writeTo(builder::accept);
+                    if (builder.count > 0) {
+                        gpsDataService.openTrackStream(deviceId, startTime, endTime, null, 0).writeTo(builder::measureDeviation);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                devicePatterns.put(deviceId, builder.build());
+            });
+            log.info("Updated movement patterns for {} devices", updated);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Movement pattern update interrupted");
+        } catch (Exception e) {
+            log.error("Error updating movement patterns: ", e);
         }
     }
 
@@ -185,6 +200,89 @@ public class PredictionService {
         private final double endLon;
     }
 
+    /**
+     * Accumulates a MovementPattern over a device's track chunk by chunk. Location counts
+     * are kept per 0.0001 degree cell; when the table fills, the cells seen least often are
+     * dropped until half of it is free, so a long one-off drive cannot grow it without bound
+     * while places the device keeps returning to survive.
+     */
+    private final class PatternBuilder {
+        private static final int MAX_LOCATION_CELLS = 100_000;
+        private static final int MIN_LOCATION_FREQUENCY = 5;
+        private static final int MIN_HOUR_READINGS = 5;
+
+        private final Map<Long, Location> locations = new HashMap<>();
+        private final int[] hourCounts = new int[24];
+        private final LocalDateTime[] hourStarts = new LocalDateTime[24];
+        private final LocalDateTime[] hourEnds = new LocalDateTime[24];
+        private long count;
+        private double speedSum;
+        private double latSum;
+        private double lonSum;
+        private double maxDeviation;
+
+        private void accept(List<GpsData> chunk) {
+            for (GpsData gps : chunk) {
+                count++;
+                speedSum += gps.getSpeed();
+                latSum += gps.getLatitude();
+                lonSum += gps.getLongitude();
+
+                long cellKey = (Math.round(gps.getLatitude() * 1e4) << 32) ^ (Math.round(gps.getLongitude() * 1e4) & 0xffffffffL);
+                locations.computeIfAbsent(cellKey, k -> new Location(gps.getLatitude(), gps.getLongitude())).frequency++;
+                if (locations.size() > MAX_LOCATION_CELLS) {
+                    pruneLocations();
+                }
+
+                LocalDateTime time = gps.getTimestamp();
+                int hour = time.getHour();
+                hourCounts[hour]++;
+                if (hourStarts[hour] == null || time.isBefore(hourStarts[hour])) {
+                    hourStarts[hour] = time;
+                }
+                if (hourEnds[hour] == null || time.isAfter(hourEnds[hour])) {
+                    hourEnds[hour] = time;
+                }
+            }
+        }
+
+        private void pruneLocations() {
+            int floor = 0;
+            while (locations.size() > MAX_LOCATION_CELLS / 2) {
+                int atMost = ++floor;
+                locations.values().removeIf(location -> location.frequency <= atMost);
+            }
+        }
+
+        /**
+         * Second pass: the distance of the farthest reading from the centre of the first
+         */
+        private void measureDeviation(List<GpsData> chunk) {
+            double centerLat = latSum / count;
+            double centerLon = lonSum / count;
+            for (GpsData point : chunk) {
+                maxDeviation = Math.max(maxDeviation,
+                        calculateDistance(point.getLatitude(), point.getLongitude(), centerLat, centerLon));
+            }
+        }
+
+        private MovementPattern build() {
+            MovementPattern pattern = new MovementPattern();
+            pattern.averageSpeed = count > 0 ? speedSum / count : 0.0;
+            pattern.commonLocations = locations.values().stream()
+                    .filter(location -> location.frequency >= MIN_LOCATION_FREQUENCY)
+                    .toList();
+            pattern.activeHours = new HashMap<>();
+            for (int hour = 0; hour < 24; hour++) {
+                if (hourCounts[hour] >= MIN_HOUR_READINGS) {
+                    pattern.activeHours.put(hour, new TimeRange(hourStarts[hour], hourEnds[hour]));
+                }
+            }
+            pattern.maxDeviation = maxDeviation;
+            return pattern;
+        }
+    }
+
     // Private helper methods
 
     private Map<RouteSegment, Integer> analyzeRouteSegments(List<GpsData> data) {
@@ -230,83 +328,6 @@ public class PredictionService {
         return Math.min(1.0, Math.abs(current - baseline) / baseline);
     }
 
-    private double calculateAverageSpeed(List<GpsData> data) {
-        return data.stream()
-                  .mapToDouble(GpsData::getSpeed)
-                  .average()
-                  .orElse(0.0);
-    }
-
-    private List<Location> findCommonLocations(List<GpsData> data) {
-        Map<String, Location> locations = new HashMap<>();
-        
-        data.forEach(gps -> {
-            String key = String.format("%.4f_%.4f", gps.getLatitude(), gps.getLongitude());
-            locations.computeIfAbsent(
-                key,
-                k -> new Location(gps.getLatitude(), gps.getLongitude())
-            ).frequency++;
-        });
-        
-        return locations.values().stream()
-                       .filter(loc -> loc.frequency >= 5)
-                       .toList();
-    }
-
-    private Map<Integer, TimeRange> analyzeActiveHours(List<GpsData> data) {
-        Map<Integer, List<LocalDateTime>> hourlyData = new HashMap<>();
-        
-        data.forEach(gps -> {
-            int hour = gps.getTimestamp().getHour();
-            hourlyData.computeIfAbsent(hour, k -> new ArrayList<>())
-                     .add(gps.getTimestamp());
-        });
-        
-        Map<Integer, TimeRange> activeHours = new HashMap<>();
-        hourlyData.forEach((hour, times) -> {
-            if (times.size() >= 5) { // Consider hour active if seen 5+ times
-                activeHours.put(hour, new TimeRange(
-                    times.stream().min(LocalDateTime::compareTo).orElse(null),
-                    times.stream().max(LocalDateTime::compareTo).orElse(null)
-                ));
-            }
-        });
-        
-        return activeHours;
-    }
-
-    private double calculateMaxDeviation(List<GpsData> data) {
-        if (data.isEmpty()) return 0.0;
-        
-        double maxDev = 0.0;
-        GpsData center = calculateCenterPoint(data);
-        
-        for (GpsData point : data) {
-            double deviation = calculateDistance(
-                point.getLatitude(),
-                point.getLongitude(),
-                center.getLatitude(),
-                center.getLongitude()
-            );
-            maxDev = Math.max(maxDev, deviation);
-        }
-        
-        return maxDev;
-    }
-
-    private GpsData calculateCenterPoint(List<GpsData> data) {
-        double sumLat = 0, sumLon = 0;
-        for (GpsData point : data) {
-            sumLat += point.getLatitude();
-            sumLon += point.getLongitude();
-        }
-        
-        GpsData center = new GpsData();
-        center.setLatitude(sumLat / data.size());
-        center.setLongitude(sumLon / data.size());
-        return center;
-    }
-
     private double calculateDistance(double lat1, double lon1, double lat2, double lon2) {
         final int R = 6371; // Earth's radius in km
         
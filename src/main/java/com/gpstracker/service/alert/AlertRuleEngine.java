@@ -0,0 +1,262 @@
+package com.gpstracker.service.alert;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gpstracker.model.AlertRecord;
+import com.gpstracker.model.AlertRule;
+import com.gpstracker.model.GpsData;
+import com.gpstracker.service.geofence.GeofenceService;
+import com.gpstracker.service.ingest.DeviceState;
+import com.gpstracker.service.ingest.RuleState;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Per-fleet alert rules, compiled into an array of CompiledRule per fleet and evaluated
+ * on every reading by the partition that owns the device.
+ *
+ * A fleet's rules replace the "default" rule set, which in turn replaces the built-in
+ * rules (the thresholds the service used to hardcode). Rule sets live in Redis; any
+ * change bumps a version counter and every node recompiles when it sees a new version.
+ */
+@Slf4j
+@Service
+public class AlertRuleEngine {
+
+    public static final String DEFAULT_FLEET = "default";
+
+    private static final String RULES_KEY = "gps:rules:alert";
+    private static final String VERSION_KEY = "gps:rules:alert:version";
+    private static final Pattern ID_PATTERN = Pattern.compile("[A-Za-z0-9_.:-]{1,64}");
+    private static final int MAX_RULES_PER_FLEET = 100;
+
+    private static final CompiledRule[] BUILT_IN_CHAIN = compile(builtInRules());
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private GeofenceService geofenceService;
+
+    private volatile Map<String, List<AlertRule>> ruleSets = Collections.emptyMap();
+    private volatile Map<String, CompiledRule[]> chains = Collections.emptyMap();
+    private volatile String loadedVersion;
+
+    @PostConstruct
+    public void init() {
+        try {
+            reload();
+        } catch (Exception e) {
+            // Not fatal: built-in rules apply until the refresh below succeeds
+            log.warn("Could not load alert rules, using built-in rules: {}", e.getMessage());
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${gps.alert.rules-refresh-ms:5000}")
+    public void refreshIfChanged() {
+        try {
+            String version = stringRedisTemplate.opsForValue().get(VERSION_KEY);
+            if (!Objects.equals(version, loadedVersion)) {
+                reload();
+            }
+        } catch (Exception e) {
+            log.error("Error refreshing alert rules: ", e);
+        }
+    }
+
+    /**
+     * Runs the device's rule chain over a reading, sets the reading's alert flags for the
+     * rules that are active and appends a record for every rule that was raised or cleared
+     */
+    public void evaluate(GpsData gpsData, DeviceState state, List<AlertRecord> records) {
+        CompiledRule[] chain = chainFor(geofenceService.getDeviceFleet(gpsData.getDeviceId()));
+        long timestamp = gpsData.getTimestamp().toInstant(ZoneOffset.UTC).toEpochMilli();
+        Map<String, RuleState> ruleStates = state.getRuleStates();
+        int flags = 0;
+
+        for (CompiledRule rule : chain) {
+            double value = rule.read(gpsData);
+            RuleState ruleState = ruleStates.get(rule.id);
+            if (ruleState == null) {
+                ruleState = new RuleState();
+                ruleStates.put(rule.id, ruleState);
+            }
+
+            if (!ruleState.isActive()) {
+                if (!rule.breached(value)) {
+                    ruleState.setBreachSince(0);
+                } else {
+                    if (ruleState.getBreachSince() == 0) {
+                        ruleState.setBreachSince(timestamp);
+                    }
+                    boolean heldLongEnough = timestamp - ruleState.getBreachSince() >= rule.minDurationMillis;
+                    boolean cooledDown = ruleState.getClearedAt() == 0
+                            || timestamp - ruleState.getClearedAt() >= rule.cooldownMillis;
+                    if (heldLongEnough && cooledDown) {
+                        ruleState.setActive(true);
+                        records.add(record(gpsData, rule, value, AlertRecord.State.RAISED));
+                    }
+                }
+            } else if (rule.cleared(value)) {
+                ruleState.setActive(false);
+                ruleState.setBreachSince(0);
+                ruleState.setClearedAt(timestamp);
+                records.add(record(gpsData, rule, value, AlertRecord.State.CLEARED));
+            }
+
+            if (ruleState.isActive()) {
+                flags |= rule.flag;
+            }
+        }
+
+        gpsData.setLowBattery((flags & CompiledRule.LOW_BATTERY) != 0);
+        gpsData.setSpeedAlert((flags & CompiledRule.SPEED) != 0);
+        gpsData.setMalfunctionAlert((flags & CompiledRule.MALFUNCTION) != 0);
+    }
+
+    /**
+     * The rules in effect for a fleet, falling back like the evaluation does
+     */
+    public List<AlertRule> getRules(String fleetId) {
+        Map<String, List<AlertRule>> current = ruleSets;
+        List<AlertRule> rules = current.get(fleetId);
+        if (rules == null) {
+            rules = current.get(DEFAULT_FLEET);
+        }
+        return rules != null ? rules : builtInRules();
+    }
+
+    public void setRules(String fleetId, List<AlertRule> rules) throws JsonProcessingException {
+        validate(fleetId, rules);
+        stringRedisTemplate.opsForHash().put(RULES_KEY, fleetId, objectMapper.writeValueAsString(rules));
+        changed();
+    }
+
+    public boolean deleteRules(String fleetId) {
+        Long removed = stringRedisTemplate.opsForHash().delete(RULES_KEY, fleetId);
+        if (removed == null || removed == 0) {
+            return false;
+        }
+        changed();
+        return true;
+    }
+
+    private CompiledRule[] chainFor(String fleetId) {
+        Map<String, CompiledRule[]> current = chains;
+        CompiledRule[] chain = fleetId != null ? current.get(fleetId) : null;
+        if (chain == null) {
+            chain = current.get(DEFAULT_FLEET);
+        }
+        return chain != null ? chain : BUILT_IN_CHAIN;
+    }
+
+    private void changed() {
+        stringRedisTemplate.opsForValue().increment(VERSION_KEY);
+        reload();
+    }
+
+    private synchronized void reload() {
+        String version = stringRedisTemplate.opsForValue().get(VERSION_KEY);
+        Map<String, List<AlertRule>> loadedRules = new HashMap<>();
+        Map<String, CompiledRule[]> compiled = new HashMap<>();
+
+        stringRedisTemplate.<String, String>opsForHash().entries(RULES_KEY).forEach((fleetId, json) -> {
+            try {
+                List<AlertRule> rules = objectMapper.readValue(json, new TypeReference<List<AlertRule>>() { });
+                loadedRules.put(fleetId, Collections.unmodifiableList(rules));
+                compiled.put(fleetId, compile(rules));
+            } catch (JsonProcessingException e) {
+                log.error("Skipping unreadable alert rules of fleet {}: {}", fleetId, e.getOriginalMessage());
+            }
+        });
+
+        ruleSets = loadedRules;
+        chains = compiled;
+        loadedVersion = version;
+        log.debug("Loaded alert rules for {} fleets (version {})", compiled.size(), version);
+    }
+
+    private static CompiledRule[] compile(List<AlertRule> rules) {
+        return rules.stream()
+                .filter(AlertRule::isEnabled)
+                .map(CompiledRule::new)
+                .toArray(CompiledRule[]::new);
+    }
+
+    private static void validate(String fleetId, List<AlertRule> rules) {
+        if (fleetId == null || !ID_PATTERN.matcher(fleetId).matches()) {
+            throw new IllegalArgumentException("fleetId must be 1-64 characters of [A-Za-z0-9_.:-]");
+        }
+        if (rules == null || rules.size() > MAX_RULES_PER_FLEET) {
+            throw new IllegalArgumentException("A fleet can have at most " + MAX_RULES_PER_FLEET + " rules");
+        }
+
+        Set<String> ids = new HashSet<>();
+        for (AlertRule rule : rules) {
+            if (rule.getId() == null || !ID_PATTERN.matcher(rule.getId()).matches() || !ids.add(rule.getId())) {
+                throw new IllegalArgumentException("Rule ids must be unique and 1-64 characters of [A-Za-z0-9_.:-]");
+            }
+            if (rule.getMetric() == null || rule.getCondition() == null) {
+                throw new IllegalArgumentException("Rule " + rule.getId() + " needs a metric and a condition");
+            }
+            if (rule.getMinDurationSeconds() < 0 || rule.getCooldownSeconds() < 0) {
+                throw new IllegalArgumentException("Rule " + rule.getId() + " has a negative duration");
+            }
+            Double clear = rule.getClearThreshold();
+            boolean above = rule.getCondition() == AlertRule.Condition.ABOVE;
+            if (clear != null && (above ? clear > rule.getThreshold() : clear < rule.getThreshold())) {
+                throw new IllegalArgumentException("Rule " + rule.getId()
+                        + " must clear on the safe side of its threshold");
+            }
+        }
+    }
+
+    private static AlertRecord record(GpsData gpsData, CompiledRule rule, double value, AlertRecord.State state) {
+        AlertRecord record = new AlertRecord();
+        record.setDeviceId(gpsData.getDeviceId());
+        record.setType(rule.metric.name());
+        record.setSeverity(rule.severity);
+        record.setState(state);
+        record.setTimestamp(gpsData.getTimestamp());
+        record.setLatitude(gpsData.getLatitude());
+        record.setLongitude(gpsData.getLongitude());
+        record.setValue(value);
+        record.setRuleId(rule.id);
+        return record;
+    }
+
+    /**
+     * The thresholds that used to be hardcoded, with hysteresis and cooldowns added
+     */
+    private static List<AlertRule> builtInRules() {
+        return Arrays.asList(
+                rule("low-battery", AlertRule.Metric.BATTERY_LEVEL, AlertRule.Condition.BELOW, 0.2, 0.25, 600),
+                rule("speeding", AlertRule.Metric.SPEED, AlertRule.Condition.ABOVE, 120.0, 110.0, 300),
+                rule("poor-accuracy", AlertRule.Metric.ACCURACY, AlertRule.Condition.ABOVE, 100, 50, 600),
+                rule("weak-signal", AlertRule.Metric.SIGNAL_STRENGTH, AlertRule.Condition.BELOW, 2, 2, 600));
+    }
+
+    private static AlertRule rule(String id, AlertRule.Metric metric, AlertRule.Condition condition,
+                                  double threshold, double clearThreshold, long cooldownSeconds) {
+        AlertRule rule = new AlertRule();
+        rule.setId(id);
+        rule.setMetric(metric);
+        rule.setCondition(condition);
+        rule.setThreshold(threshold);
+        rule.setClearThreshold(clearThreshold);
+        rule.setCooldownSeconds(cooldownSeconds);
+        return rule;
+    }
+}
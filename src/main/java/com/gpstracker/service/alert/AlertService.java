@@ -0,0 +1,184 @@
+package com.gpstracker.service.alert;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gpstracker.model.AlertRecord;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Stores and publishes alert records.
+ *
+ * Records are kept in sorted sets scored by alert time: gps:alerts:<id> for all of a
+ * device's alerts and gps:alerts:<id>:<type> per type. A time-range query only touches
+ * the entries inside the range, and pages continue from an opaque cursor holding the
+ * last score returned and how many entries with that score were already seen.
+ */
+@Slf4j
+@Service
+public class AlertService {
+
+    private static final String ALERT_KEY_PREFIX = "gps:alerts:";
+    private static final int ALERT_RETENTION_DAYS = 7;
+    private static final long ALERT_RETENTION_SECONDS = TimeUnit.DAYS.toSeconds(ALERT_RETENTION_DAYS);
+    private static final int MAX_ALERTS_PER_KEY = 10000;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final Pattern TYPE_PATTERN = Pattern.compile("[A-Z_]{1,32}");
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private SimpMessagingTemplate messagingTemplate;
+
+    /**
+     * Queues the writes for a batch's records on a pipelined connection
+     */
+    public void write(RedisConnection connection, List<AlertRecord> records) {
+        Set<String> alertKeys = new HashSet<>();
+        for (AlertRecord record : records) {
+            byte[] member = encode(record);
+            double score = record.getTimestamp().toInstant(ZoneOffset.UTC).toEpochMilli();
+            String deviceKey = getAlertKey(record.getDeviceId());
+            String typeKey = getAlertKey(record.getDeviceId(), record.getType());
+
+            connection.zSetCommands().zAdd(raw(deviceKey), score, member);
+            connection.zSetCommands().zAdd(raw(typeKey), score, member);
+            alertKeys.add(deviceKey);
+            alertKeys.add(typeKey);
+        }
+
+        // Trimmed by age on every write, so the TTL refresh below never keeps old entries alive
+        double trimBefore = LocalDateTime.now(ZoneOffset.UTC).minusDays(ALERT_RETENTION_DAYS).toInstant(ZoneOffset.UTC).toEpochMilli();
+        for (String alertKey : alertKeys) {
+            connection.zSetCommands().zRemRangeByScore(raw(alertKey), Double.NEGATIVE_INFINITY, trimBefore);
+            connection.zSetCommands().zRemRange(raw(alertKey), 0, -(MAX_ALERTS_PER_KEY + 1));
+            connection.keyCommands().expire(raw(alertKey), ALERT_RETENTION_SECONDS);
+        }
+    }
+
+    public void publish(List<AlertRecord> records) {
+        for (AlertRecord record : records) {
+            messagingTemplate.convertAndSend("/topic/alerts/" + record.getDeviceId(), record);
+        }
+    }
+
+    /**
+     * One page of a device's alerts between two times (inclusive), newest first,
+     * optionally of one type. Pass the previous page's nextCursor to continue.
+     */
+    public AlertPage getAlerts(String deviceId, LocalDateTime startTime, LocalDateTime endTime,
+                               String type, String cursor, int limit) {
+        if (type != null && !TYPE_PATTERN.matcher(type).matches()) {
+            throw new IllegalArgumentException("Invalid alert type: " + type);
+        }
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE_SIZE);
+        }
+
+        double min = startTime.toInstant(ZoneOffset.UTC).toEpochMilli();
+        double max = endTime.toInstant(ZoneOffset.UTC).toEpochMilli();
+        long skip = 0;
+        if (cursor != null) {
+            double[] position = decodeCursor(cursor);
+            max = Math.min(max, position[0]);
+            skip = (long) position[1];
+        }
+
+        String alertKey = type != null ? getAlertKey(deviceId, type) : getAlertKey(deviceId);
+        // One extra entry tells whether another page exists
+        Set<ZSetOperations.TypedTuple<String>> entries = stringRedisTemplate.opsForZSet()
+                .reverseRangeByScoreWithScores(alertKey, min, max, skip, limit + 1);
+
+        AlertPage page = new AlertPage();
+        page.setAlerts(new ArrayList<>(Math.min(limit, entries == null ? 0 : entries.size())));
+        if (entries == null || entries.isEmpty()) {
+            return page;
+        }
+
+        double lastScore = Double.NaN;
+        long sameScore = 0;
+        int returned = 0;
+        for (ZSetOperations.TypedTuple<String> entry : entries) {
+            if (returned == limit) {
+                // The cursor resumes at the last returned score, past the entries already seen there
+                page.setNextCursor(encodeCursor(lastScore, lastScore == max ? skip + sameScore : sameScore));
+                break;
+            }
+            double score = entry.getScore();
+            sameScore = score == lastScore ? sameScore + 1 : 1;
+            lastScore = score;
+            returned++;
+
+            AlertRecord record = decode(entry.getValue());
+            if (record != null) {
+                page.getAlerts().add(record);
+            }
+        }
+        return page;
+    }
+
+    private static String getAlertKey(String deviceId) {
+        return ALERT_KEY_PREFIX + deviceId;
+    }
+
+    private static String getAlertKey(String deviceId, String type) {
+        return ALERT_KEY_PREFIX + deviceId + ":" + type;
+    }
+
+    private static String encodeCursor(double score, long skip) {
+        String position = (long) score + ":" + skip;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static double[] decodeCursor(String cursor) {
+        try {
+            String[] position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":");
+            return new double[] { Long.parseLong(position[0]), Long.parseLong(position[1]) };
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+
+    private byte[] encode(AlertRecord record) {
+        try {
+            return objectMapper.writeValueAsBytes(record);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot serialize alert record", e);
+        }
+    }
+
+    private AlertRecord decode(String json) {
+        try {
+            return objectMapper.readValue(json, AlertRecord.class);
+        } catch (JsonProcessingException e) {
+            log.warn("Skipping unreadable alert record: {}", e.getOriginalMessage());
+            return null;
+        }
+    }
+
+    private static byte[] raw(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @lombok.Data
+    public static class AlertPage {
+        private List<AlertRecord> alerts;
+        private String nextCursor; // null on the last page
+    }
+}
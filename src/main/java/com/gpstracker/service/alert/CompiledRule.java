@@ -0,0 +1,80 @@
+package com.gpstracker.service.alert;
+
+import com.gpstracker.model.AlertRecord;
+import com.gpstracker.model.AlertRule;
+import com.gpstracker.model.GpsData;
+
+/**
+ * An AlertRule reduced to primitives for the per-reading evaluation chain
+ */
+final class CompiledRule {
+
+    // GpsData alert flags a rule drives while active
+    static final int LOW_BATTERY = 1;
+    static final int SPEED = 2;
+    static final int MALFUNCTION = 4;
+
+    final String id;
+    final AlertRule.Metric metric;
+    final AlertRecord.Severity severity;
+    final int flag;
+
+    private final boolean above;
+    private final double threshold;
+    private final double clearThreshold;
+    final long minDurationMillis;
+    final long cooldownMillis;
+
+    CompiledRule(AlertRule rule) {
+        this.id = rule.getId();
+        this.metric = rule.getMetric();
+        this.severity = rule.getSeverity() != null ? rule.getSeverity() : AlertRecord.Severity.WARNING;
+        this.above = rule.getCondition() == AlertRule.Condition.ABOVE;
+        this.threshold = rule.getThreshold();
+        this.clearThreshold = rule.getClearThreshold() != null ? rule.getClearThreshold() : rule.getThreshold();
+        this.minDurationMillis = rule.getMinDurationSeconds() * 1000;
+        this.cooldownMillis = rule.getCooldownSeconds() * 1000;
+
+        switch (metric) {
+            case BATTERY_LEVEL:
+                flag = LOW_BATTERY;
+                break;
+            case SPEED:
+                flag = SPEED;
+                break;
+            case ACCURACY:
+            case SIGNAL_STRENGTH:
+                flag = MALFUNCTION;
+                break;
+            default:
+                flag = 0;
+                break;
+        }
+    }
+
+    double read(GpsData gpsData) {
+        switch (metric) {
+            case SPEED:
+                return gpsData.getSpeed();
+            case BATTERY_LEVEL:
+                return gpsData.getBatteryLevel();
+            case ACCURACY:
+                return gpsData.getAccuracy();
+            case SIGNAL_STRENGTH:
+                return gpsData.getSignalStrength();
+            case TEMPERATURE:
+                return gpsData.getTemperature();
+            case HUMIDITY:
+            default:
+                return gpsData.getHumidity();
+        }
+    }
+
+    boolean breached(double value) {
+        return above ? value > threshold : value < threshold;
+    }
+
+    boolean cleared(double value) {
+        return above ? value <= clearThreshold : value >= clearThreshold;
+    }
+}
@@ -0,0 +1,99 @@
+package com.gpstracker.service.geofence;
+
+import com.gpstracker.model.GeofenceZone;
+
+/**
+ * A zone prepared for point tests: bounding box first, then an exact test on
+ * primitive arrays
+ */
+final class CompiledZone {
+
+    private static final double KM_PER_DEGREE = 111.32;
+    private static final double EARTH_RADIUS_KM = 6371;
+
+    final String id;
+    final String fleetId;
+    final long dwellMillis;
+
+    final double minLat;
+    final double maxLat;
+    final double minLon;
+    final double maxLon;
+
+    private final boolean circle;
+    private final double centerLat;
+    private final double centerLon;
+    private final double radiusKm;
+    private final double[] lats;
+    private final double[] lons;
+
+    CompiledZone(String id, GeofenceZone zone) {
+        this.id = id;
+        this.fleetId = zone.getFleetId();
+        this.dwellMillis = zone.getDwellSeconds() * 1000;
+        this.circle = zone.getShape() == GeofenceZone.Shape.CIRCLE;
+
+        if (circle) {
+            centerLat = zone.getCenterLat();
+            centerLon = zone.getCenterLon();
+            radiusKm = zone.getRadius();
+            lats = null;
+            lons = null;
+
+            double dLat = radiusKm / KM_PER_DEGREE;
+            double dLon = radiusKm / (KM_PER_DEGREE * Math.max(0.01, Math.cos(Math.toRadians(centerLat))));
+            minLat = centerLat - dLat;
+            maxLat = centerLat + dLat;
+            minLon = centerLon - dLon;
+            maxLon = centerLon + dLon;
+        } else {
+            centerLat = 0;
+            centerLon = 0;
+            radiusKm = 0;
+            int n = zone.getVertices().size();
+            lats = new double[n];
+            lons = new double[n];
+            double lo = Double.MAX_VALUE, hi = -Double.MAX_VALUE, left = Double.MAX_VALUE, right = -Double.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                lats[i] = zone.getVertices().get(i)[0];
+                lons[i] = zone.getVertices().get(i)[1];
+                lo = Math.min(lo, lats[i]);
+                hi = Math.max(hi, lats[i]);
+                left = Math.min(left, lons[i]);
+                right = Math.max(right, lons[i]);
+            }
+            minLat = lo;
+            maxLat = hi;
+            minLon = left;
+            maxLon = right;
+        }
+    }
+
+    boolean contains(double lat, double lon) {
+        if (lat < minLat || lat > maxLat || lon < minLon || lon > maxLon) {
+            return false;
+        }
+        return circle ? distanceKm(lat, lon) <= radiusKm : polygonContains(lat, lon);
+    }
+
+    private double distanceKm(double lat, double lon) {
+        double latDistance = Math.toRadians(lat - centerLat);
+        double lonDistance = Math.toRadians(lon - centerLon);
+        double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2)
+                + Math.cos(Math.toRadians(centerLat)) * Math.cos(Math.toRadians(lat))
+                * Math.sin(lonDistance / 2) * Math.sin(lonDistance / 2);
+        return EARTH_RADIUS_KM * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+
+    // Even-odd ray casting with longitude as x and latitude as y
+    private boolean polygonContains(double lat, double lon) {
+        boolean inside = false;
+        for (int i = 0, j = lats.length - 1; i < lats.length; j = i++) {
+            if ((lats[i] > lat) != (lats[j] > lat)
+                    && lon < (lons[j] - lons[i]) * (lat - lats[i]) / (lats[j] - lats[i]) + lons[i]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+}
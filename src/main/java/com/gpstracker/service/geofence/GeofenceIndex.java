@@ -0,0 +1,75 @@
+package com.gpstracker.service.geofence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable uniform grid over a fleet's zones. Each cell lists the zones whose bounding
+ * box overlaps it, so a lookup is one hash probe plus exact tests on a few candidates.
+ * Zones too large for the grid are kept aside and tested by bounding box on every lookup.
+ */
+final class GeofenceIndex {
+
+    private static final int MAX_CELLS_PER_ZONE = 4096;
+    private static final CompiledZone[] NO_ZONES = new CompiledZone[0];
+
+    private final double cellDegrees;
+    private final Map<Long, CompiledZone[]> cells;
+    private final CompiledZone[] largeZones;
+
+    private GeofenceIndex(double cellDegrees, Map<Long, CompiledZone[]> cells, CompiledZone[] largeZones) {
+        this.cellDegrees = cellDegrees;
+        this.cells = cells;
+        this.largeZones = largeZones;
+    }
+
+    static GeofenceIndex build(Collection<CompiledZone> zones, double cellDegrees) {
+        Map<Long, List<CompiledZone>> grid = new HashMap<>();
+        List<CompiledZone> large = new ArrayList<>();
+
+        for (CompiledZone zone : zones) {
+            long fromLat = cell(zone.minLat, cellDegrees), toLat = cell(zone.maxLat, cellDegrees);
+            long fromLon = cell(zone.minLon, cellDegrees), toLon = cell(zone.maxLon, cellDegrees);
+            if ((toLat - fromLat + 1) * (toLon - fromLon + 1) > MAX_CELLS_PER_ZONE) {
+                large.add(zone);
+                continue;
+            }
+            for (long y = fromLat; y <= toLat; y++) {
+                for (long x = fromLon; x <= toLon; x++) {
+                    grid.computeIfAbsent(cellKey(y, x), k -> new ArrayList<>(2)).add(zone);
+                }
+            }
+        }
+
+        Map<Long, CompiledZone[]> cells = new HashMap<>(grid.size() * 2);
+        grid.forEach((key, list) -> cells.put(key, list.toArray(NO_ZONES)));
+        return new GeofenceIndex(cellDegrees, cells, large.toArray(NO_ZONES));
+    }
+
+    void collectContaining(double lat, double lon, List<CompiledZone> out) {
+        CompiledZone[] candidates = cells.get(cellKey(cell(lat, cellDegrees), cell(lon, cellDegrees)));
+        if (candidates != null) {
+            for (CompiledZone zone : candidates) {
+                if (zone.contains(lat, lon)) {
+                    out.add(zone);
+                }
+            }
+        }
+        for (CompiledZone zone : largeZones) {
+            if (zone.contains(lat, lon)) {
+                out.add(zone);
+            }
+        }
+    }
+
+    private static long cell(double degrees, double cellDegrees) {
+        return (long) Math.floor(degrees / cellDegrees);
+    }
+
+    private static long cellKey(long latCell, long lonCell) {
+        return (latCell << 32) ^ (lonCell & 0xffffffffL);
+    }
+}
@@ -0,0 +1,388 @@
+package com.gpstracker.service.geofence;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gpstracker.model.GeofenceEvent;
+import com.gpstracker.model.GeofenceZone;
+import com.gpstracker.model.GpsData;
+import com.gpstracker.service.ingest.DeviceState;
+import com.gpstracker.service.ingest.ZoneVisit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Geofence zones and their evaluation on ingest.
+ *
+ * Zones live in Redis and are compiled into an immutable snapshot of per-fleet grid
+ * indexes that the ingest partitions read without locking. Any change bumps a version
+ * counter; every node rebuilds its snapshot when it sees a new version.
+ *
+ * Events are emitted only on transitions: ENTER on the first reading inside a zone,
+ * EXIT on the first reading outside it, and DWELL once per visit after the zone's dwell time.
+ */
+@Slf4j
+@Service
+public class GeofenceService {
+
+    private static final String FLEETS_KEY = "gps:zones:fleets";
+    private static final String FLEET_ZONES_KEY_PREFIX = "gps:zones:fleet:";
+    private static final String DEVICE_ZONES_KEY = "gps:zones:device";
+    private static final String VERSION_KEY = "gps:zones:version";
+    private static final String FLEET_MEMBERS_KEY = "gps:fleet:members";
+    private static final String LEGACY_GEOFENCE_KEY_PREFIX = "gps:geofence:";
+
+    // Visit key of a device's own zone; '@' cannot occur in fleet zone ids
+    private static final String DEVICE_ZONE_VISIT = "@device";
+    private static final Pattern ID_PATTERN = Pattern.compile("[A-Za-z0-9_.:-]{1,64}");
+    private static final int MAX_POLYGON_VERTICES = 1000;
+
+    @Value("${gps.geofence.cell-degrees:0.05}")
+    private double cellDegrees;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private SimpMessagingTemplate messagingTemplate;
+
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyMap(), Collections.emptyMap(),
+            Collections.emptyMap(), Collections.emptyMap());
+    private volatile String loadedVersion;
+
+    @PostConstruct
+    public void init() {
+        try {
+            migrateLegacyGeofences();
+            reload();
+        } catch (Exception e) {
+            // Not fatal: the refresh below retries until Redis is reachable
+            log.warn("Could not load geofence zones, starting empty: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Picks up zone and membership changes made through other nodes
+     */
+    @Scheduled(fixedDelayString = "${gps.geofence.refresh-ms:5000}")
+    public void refreshIfChanged() {
+        try {
+            String version = stringRedisTemplate.opsForValue().get(VERSION_KEY);
+            if (!Objects.equals(version, loadedVersion)) {
+                reload();
+            }
+        } catch (Exception e) {
+            log.error("Error refreshing geofence zones: ", e);
+        }
+    }
+
+    /**
+     * Checks a reading against its fleet's zones and the device's own zone, updates the
+     * device's visits and appends an event for every transition. Called only from the
+     * ingest partition that owns the device.
+     */
+    public void evaluate(GpsData gpsData, DeviceState state, List<GeofenceEvent> events) {
+        Snapshot current = snapshot;
+        String deviceId = gpsData.getDeviceId();
+        String fleetId = current.deviceFleets.get(deviceId);
+        Map<String, ZoneVisit> visits = state.getZoneVisits();
+
+        List<CompiledZone> inside = new ArrayList<>(2);
+        GeofenceIndex index = fleetId != null ? current.fleets.get(fleetId) : null;
+        if (index != null) {
+            index.collectContaining(gpsData.getLatitude(), gpsData.getLongitude(), inside);
+        }
+        CompiledZone ownZone = current.deviceZones.get(deviceId);
+        if (ownZone != null && ownZone.contains(gpsData.getLatitude(), gpsData.getLongitude())) {
+            inside.add(ownZone);
+        }
+        if (inside.isEmpty() && visits.isEmpty()) {
+            gpsData.setGeofenceAlert(false);
+            return;
+        }
+
+        long timestamp = gpsData.getTimestamp().toInstant(ZoneOffset.UTC).toEpochMilli();
+        boolean transition = false;
+
+        Iterator<Map.Entry<String, ZoneVisit>> it = visits.entrySet().iterator();
+        while (it.hasNext()) {
+            String visitKey = it.next().getKey();
+            if (!containsVisit(inside, ownZone, visitKey)) {
+                it.remove();
+                events.add(event(gpsData, DEVICE_ZONE_VISIT.equals(visitKey) ? null : fleetId,
+                        DEVICE_ZONE_VISIT.equals(visitKey) ? ownZoneId(ownZone) : visitKey, GeofenceEvent.Type.EXIT));
+                transition = true;
+            }
+        }
+
+        for (CompiledZone zone : inside) {
+            String visitKey = zone == ownZone ? DEVICE_ZONE_VISIT : zone.id;
+            ZoneVisit visit = visits.get(visitKey);
+            if (visit == null) {
+                visits.put(visitKey, new ZoneVisit(timestamp, false));
+                events.add(event(gpsData, zone.fleetId, zone.id, GeofenceEvent.Type.ENTER));
+                transition = true;
+            } else if (zone.dwellMillis > 0 && !visit.isDwellReported()
+                    && timestamp - visit.getEnteredAt() >= zone.dwellMillis) {
+                visit.setDwellReported(true);
+                events.add(event(gpsData, zone.fleetId, zone.id, GeofenceEvent.Type.DWELL));
+                transition = true;
+            }
+        }
+
+        gpsData.setGeofenceAlert(transition);
+    }
+
+    public void publish(List<GeofenceEvent> events) {
+        for (GeofenceEvent event : events) {
+            messagingTemplate.convertAndSend("/topic/geofence/" + event.getDeviceId(), event);
+            if (event.getFleetId() != null) {
+                messagingTemplate.convertAndSend("/topic/geofence/fleet/" + event.getFleetId(), event);
+            }
+        }
+    }
+
+    public List<GeofenceZone> getZones(String fleetId) {
+        return snapshot.fleetZones.getOrDefault(fleetId, Collections.emptyList());
+    }
+
+    public void saveZone(String fleetId, GeofenceZone zone) throws JsonProcessingException {
+        requireId(fleetId, "fleetId");
+        requireId(zone.getId(), "zone id");
+        zone.setFleetId(fleetId);
+        validateShape(zone);
+
+        stringRedisTemplate.opsForHash().put(FLEET_ZONES_KEY_PREFIX + fleetId, zone.getId(),
+                objectMapper.writeValueAsString(zone));
+        stringRedisTemplate.opsForSet().add(FLEETS_KEY, fleetId);
+        changed();
+    }
+
+    public boolean deleteZone(String fleetId, String zoneId) {
+        Long removed = stringRedisTemplate.opsForHash().delete(FLEET_ZONES_KEY_PREFIX + fleetId, zoneId);
+        if (removed == null || removed == 0) {
+            return false;
+        }
+        changed();
+        return true;
+    }
+
+    public void setDeviceFleet(String deviceId, String fleetId) {
+        requireId(fleetId, "fleetId");
+        stringRedisTemplate.opsForHash().put(FLEET_MEMBERS_KEY, deviceId, fleetId);
+        changed();
+    }
+
+    public void removeDeviceFleet(String deviceId) {
+        stringRedisTemplate.opsForHash().delete(FLEET_MEMBERS_KEY, deviceId);
+        changed();
+    }
+
+    public String getDeviceFleet(String deviceId) {
+        return snapshot.deviceFleets.get(deviceId);
+    }
+
+    /**
+     * The single circle per device of the original geofence API, radius in km
+     */
+    public void setDeviceCircle(String deviceId, double centerLat, double centerLon, double radius)
+            throws JsonProcessingException {
+        stringRedisTemplate.opsForHash().put(DEVICE_ZONES_KEY, deviceId,
+                objectMapper.writeValueAsString(deviceCircle(centerLat, centerLon, radius)));
+        changed();
+    }
+
+    private void changed() {
+        stringRedisTemplate.opsForValue().increment(VERSION_KEY);
+        reload();
+    }
+
+    private synchronized void reload() {
+        String version = stringRedisTemplate.opsForValue().get(VERSION_KEY);
+
+        Map<String, GeofenceIndex> fleets = new HashMap<>();
+        Map<String, List<GeofenceZone>> fleetZones = new HashMap<>();
+        Set<String> fleetIds = stringRedisTemplate.opsForSet().members(FLEETS_KEY);
+        int zoneCount = 0;
+
+        for (String fleetId : fleetIds == null ? Collections.<String>emptySet() : fleetIds) {
+            List<GeofenceZone> zones = new ArrayList<>();
+            List<CompiledZone> compiled = new ArrayList<>();
+            for (Object json : stringRedisTemplate.opsForHash().values(FLEET_ZONES_KEY_PREFIX + fleetId)) {
+                GeofenceZone zone = parseZone((String) json);
+                if (zone != null) {
+                    zones.add(zone);
+                    compiled.add(new CompiledZone(zone.getId(), zone));
+                }
+            }
+            fleetZones.put(fleetId, Collections.unmodifiableList(zones));
+            fleets.put(fleetId, GeofenceIndex.build(compiled, cellDegrees));
+            zoneCount += zones.size();
+        }
+
+        Map<String, CompiledZone> deviceZones = new HashMap<>();
+        stringRedisTemplate.<String, String>opsForHash().entries(DEVICE_ZONES_KEY).forEach((deviceId, json) -> {
+            GeofenceZone zone = parseZone(json);
+            if (zone != null) {
+                deviceZones.put(deviceId, new CompiledZone(zone.getId(), zone));
+            }
+        });
+
+        Map<String, String> deviceFleets = new HashMap<>(
+                stringRedisTemplate.<String, String>opsForHash().entries(FLEET_MEMBERS_KEY));
+
+        snapshot = new Snapshot(fleets, fleetZones, deviceZones, deviceFleets);
+        loadedVersion = version;
+        log.debug("Loaded {} zones in {} fleets, {} device zones, {} fleet members (version {})",
+                zoneCount, fleets.size(), deviceZones.size(), deviceFleets.size(), version);
+    }
+
+    /**
+     * Moves the per-device gps:geofence:<id> hashes of the original API into the zone store
+     */
+    private void migrateLegacyGeofences() throws JsonProcessingException {
+        List<String> legacyKeys = stringRedisTemplate.execute((RedisCallback<List<String>>) connection -> {
+            List<String> keys = new ArrayList<>();
+            ScanOptions options = ScanOptions.scanOptions().match(LEGACY_GEOFENCE_KEY_PREFIX + "*").count(500).build();
+            try (Cursor<byte[]> cursor = connection.keyCommands().scan(options)) {
+                cursor.forEachRemaining(key -> keys.add(new String(key, StandardCharsets.UTF_8)));
+            }
+            return keys;
+        });
+        if (legacyKeys == null || legacyKeys.isEmpty()) {
+            return;
+        }
+
+        int migrated = 0;
+        for (String key : legacyKeys) {
+            Map<String, String> legacy = stringRedisTemplate.<String, String>opsForHash().entries(key);
+            if (legacy.containsKey("centerLat") && legacy.containsKey("centerLon") && legacy.containsKey("radius")) {
+                String deviceId = key.substring(LEGACY_GEOFENCE_KEY_PREFIX.length());
+                GeofenceZone zone = deviceCircle(Double.parseDouble(legacy.get("centerLat")),
+                        Double.parseDouble(legacy.get("centerLon")), Double.parseDouble(legacy.get("radius")));
+                stringRedisTemplate.opsForHash().put(DEVICE_ZONES_KEY, deviceId, objectMapper.writeValueAsString(zone));
+                stringRedisTemplate.delete(key);
+                migrated++;
+            }
+        }
+        if (migrated > 0) {
+            stringRedisTemplate.opsForValue().increment(VERSION_KEY);
+            log.info("Migrated {} legacy device geofences", migrated);
+        }
+    }
+
+    private static GeofenceZone deviceCircle(double centerLat, double centerLon, double radius) {
+        GeofenceZone zone = new GeofenceZone();
+        zone.setId("device");
+        zone.setShape(GeofenceZone.Shape.CIRCLE);
+        zone.setCenterLat(centerLat);
+        zone.setCenterLon(centerLon);
+        zone.setRadius(radius);
+        validateShape(zone);
+        return zone;
+    }
+
+    private GeofenceZone parseZone(String json) {
+        try {
+            return objectMapper.readValue(json, GeofenceZone.class);
+        } catch (JsonProcessingException e) {
+            log.error("Skipping unreadable geofence zone: {}", e.getOriginalMessage());
+            return null;
+        }
+    }
+
+    private static void validateShape(GeofenceZone zone) {
+        if (zone.getShape() == null) {
+            throw new IllegalArgumentException("shape is required (CIRCLE or POLYGON)");
+        }
+        if (zone.getDwellSeconds() < 0) {
+            throw new IllegalArgumentException("dwellSeconds must not be negative");
+        }
+        if (zone.getShape() == GeofenceZone.Shape.CIRCLE) {
+            if (zone.getRadius() <= 0) {
+                throw new IllegalArgumentException("radius must be positive");
+            }
+            checkCoordinate(zone.getCenterLat(), zone.getCenterLon());
+            return;
+        }
+
+        List<double[]> vertices = zone.getVertices();
+        if (vertices == null || vertices.size() < 3 || vertices.size() > MAX_POLYGON_VERTICES) {
+            throw new IllegalArgumentException("A polygon needs between 3 and " + MAX_POLYGON_VERTICES + " vertices");
+        }
+        for (double[] vertex : vertices) {
+            if (vertex == null || vertex.length != 2) {
+                throw new IllegalArgumentException("Vertices must be [lat, lon] pairs");
+            }
+            checkCoordinate(vertex[0], vertex[1]);
+        }
+    }
+
+    private static void checkCoordinate(double lat, double lon) {
+        if (lat < -90 || lat > 90 || lon < -180 || lon > 180) {
+            throw new IllegalArgumentException("Coordinate out of range: " + lat + ", " + lon);
+        }
+    }
+
+    private static void requireId(String id, String name) {
+        if (id == null || !ID_PATTERN.matcher(id).matches()) {
+            throw new IllegalArgumentException(name + " must be 1-64 characters of [A-Za-z0-9_.:-]");
+        }
+    }
+
+    private static boolean containsVisit(List<CompiledZone> inside, CompiledZone ownZone, String visitKey) {
+        for (CompiledZone zone : inside) {
+            if (zone == ownZone ? DEVICE_ZONE_VISIT.equals(visitKey) : zone.id.equals(visitKey)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String ownZoneId(CompiledZone ownZone) {
+        return ownZone != null ? ownZone.id : "device";
+    }
+
+    private static GeofenceEvent event(GpsData gpsData, String fleetId, String zoneId, GeofenceEvent.Type type) {
+        GeofenceEvent event = new GeofenceEvent();
+        event.setDeviceId(gpsData.getDeviceId());
+        event.setFleetId(fleetId);
+        event.setZoneId(zoneId);
+        event.setType(type);
+        event.setTimestamp(gpsData.getTimestamp());
+        event.setLatitude(gpsData.getLatitude());
+        event.setLongitude(gpsData.getLongitude());
+        return event;
+    }
+
+    private static final class Snapshot {
+        private final Map<String, GeofenceIndex> fleets;
+        private final Map<String, List<GeofenceZone>> fleetZones;
+        private final Map<String, CompiledZone> deviceZones;
+        private final Map<String, String> deviceFleets;
+
+        private Snapshot(Map<String, GeofenceIndex> fleets, Map<String, List<GeofenceZone>> fleetZones,
+                         Map<String, CompiledZone> deviceZones, Map<String, String> deviceFleets) {
+            this.fleets = fleets;
+            this.fleetZones = fleetZones;
+            this.deviceZones = deviceZones;
+            this.deviceFleets = deviceFleets;
+        }
+    }
+}
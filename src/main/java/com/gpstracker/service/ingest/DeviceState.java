@@ -0,0 +1,58 @@
+package com.gpstracker.service.ingest;
+
+import com.gpstracker.model.GpsData;
+import com.gpstracker.service.rollup.RollupBucket;
+import com.gpstracker.service.rollup.RollupResolution;
+import com.gpstracker.service.timer.TimerWheel;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-device state owned by exactly one ingest partition. Only that partition's
+ * worker thread reads or writes it, so it needs no synchronization.
+ *
+ * Updated on every reading and written back to Redis in periodic batches.
+ */
+@Data
+public class DeviceState {
+    private GpsData lastFix;
+    private String status;
+    private double totalDistance; // km, running total
+    private double maxSpeed;
+    private boolean dirty; // changed since the last write-behind flush
+    private final List<RollupBucket> pendingRollups = new ArrayList<>(); // not yet flushed
+    private final Map<String, ZoneVisit> zoneVisits = new HashMap<>(); // geofence zones the device is in
+    private final Map<String, RuleState> ruleStates = new HashMap<>(); // by alert rule id
+    private TimerWheel.Timer<String> offlineTimer; // armed by the partition on every reading
+    private boolean offlineAlertRaised; // cleared by the device's next reading
+
+    /**
+     * Returns the pending rollup bucket, creating it if needed. Readings arrive in order,
+     * so the bucket is almost always the last one of its resolution.
+     */
+    public RollupBucket rollup(RollupResolution resolution, long bucket) {
+        for (int i = pendingRollups.size() - 1; i >= 0; i--) {
+            RollupBucket pending = pendingRollups.get(i);
+            if (pending.getResolution() == resolution && pending.getBucket() == bucket) {
+                return pending;
+            }
+        }
+        RollupBucket created = new RollupBucket(resolution, bucket);
+        pendingRollups.add(created);
+        return created;
+    }
+
+    public void recordFix(GpsData gpsData, double distance) {
+        lastFix = gpsData;
+        if (gpsData.getDeviceStatus() != null) {
+            status = gpsData.getDeviceStatus();
+        }
+        totalDistance += distance;
+        maxSpeed = Math.max(maxSpeed, gpsData.getSpeed());
+        dirty = true;
+    }
+}
@@ -0,0 +1,18 @@
+package com.gpstracker.service.ingest;
+
+import com.gpstracker.model.GpsData;
+
+import java.util.List;
+
+/**
+ * Called on an ingest worker thread after a batch has been saved
+ */
+public interface IngestListener {
+    void onSaved(List<GpsData> batch);
+
+    /**
+     * Called once when a device has sent nothing for the offline threshold
+     */
+    default void onDeviceOffline(String deviceId, GpsData lastFix) {
+    }
+}
@@ -0,0 +1,476 @@
+package com.gpstracker.service.ingest;
+
+import com.gpstracker.model.AlertRecord;
+import com.gpstracker.model.GpsData;
+import com.gpstracker.service.ClusterNode;
+import com.gpstracker.service.GpsDataService;
+import com.gpstracker.service.timer.TimerWheel;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decouples transports from storage. Readings are hashed by device into bounded
+ * partition queues, and one worker per partition drains its queue in batches.
+ *
+ * Every write path goes through here, which makes each partition worker the single
+ * writer for its devices: their readings are processed strictly in arrival order by
+ * one thread, and their state lives in that thread's plain HashMap of DeviceState.
+ *
+ * Before storage each worker passes readings through its ReorderBuffer, so storage,
+ * state and statistics see every device's readings once and in device-time order.
+ *
+ * Each worker also keeps a timer wheel with one offline deadline per device, pushed back
+ * on every reading, so a device that goes dark is reported as soon as its deadline passes.
+ * Its OFFLINE alert is written with the partition's next batch or state flush, so a mass
+ * outage costs one pipeline rather than a round trip per device.
+ *
+ * With gps.cluster.mode=redis every node runs its own partitions, so a device's readings
+ * must all reach one node. Each batch renews the device's ingest lease in Redis for this
+ * node; only devices this node holds are rehydrated, and a device whose deadline passes
+ * while another node holds its lease has moved there. Its state is dropped without an
+ * alert or a flush that would overwrite the state the new node writes.
+ */
+@Slf4j
+@Service
+public class IngestionPipeline {
+
+    @Value("${gps.ingest.partitions:#{T(java.lang.Runtime).getRuntime().availableProcessors()}}")
+    private int partitionCount;
+
+    @Value("${gps.ingest.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${gps.ingest.batch-size:500}")
+    private int batchSize;
+
+    @Value("${gps.ingest.overload-policy:BLOCK}")
+    private OverloadPolicy overloadPolicy;
+
+    @Value("${gps.ingest.block-timeout-ms:1000}")
+    private long blockTimeoutMs;
+
+    @Value("${gps.state.flush-interval-ms:5000}")
+    private long stateFlushIntervalMs;
+
+    @Value("${gps.ingest.reorder.max-lateness-ms:1000}")
+    private long maxLatenessMs;
+
+    @Value("${gps.ingest.reorder.dedup-window-ms:600000}")
+    private long dedupWindowMs;
+
+    @Value("${gps.ingest.reorder.idle-evict-ms:600000}")
+    private long reorderIdleEvictMs;
+
+    @Autowired
+    private GpsDataService gpsDataService;
+
+    @Autowired
+    private ClusterNode clusterNode;
+
+    @Autowired(required = false)
+    private List<IngestListener> listeners = Collections.emptyList();
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder batchFailures = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder late = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder offlineEvents = new LongAdder();
+    private final LongAdder offlineTimers = new LongAdder();
+    private final LongAdder handedOver = new LongAdder();
+
+    private static final long OFFLINE_TICK_MS = 1000;
+    private static final int OFFLINE_WHEEL_SLOTS = 512; // one rotation is longer than the threshold
+    private static final long OFFLINE_THRESHOLD_MS = TimeUnit.MINUTES.toMillis(GpsDataService.OFFLINE_THRESHOLD_MINUTES);
+    private static final long LEASE_RETRY_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private BlockingQueue<GpsData>[] queues;
+    private Thread[] workers;
+    private volatile boolean running;
+
+    @PostConstruct
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void start() {
+        queues = new BlockingQueue[partitionCount];
+        workers = new Thread[partitionCount];
+        running = true;
+
+        List<Map<String, DeviceState>> partitionStates = rehydrate();
+        for (int i = 0; i < partitionCount; i++) {
+            queues[i] = new ArrayBlockingQueue<>(queueCapacity);
+            BlockingQueue<GpsData> queue = queues[i];
+            // Handed to the worker before it starts; from then on only it touches the map
+            Map<String, DeviceState> deviceStates = partitionStates.get(i);
+            workers[i] = new Thread(() -> drain(queue, deviceStates), "gps-ingest-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        log.info("Started {} ingest partitions (capacity {}, policy {})", partitionCount, queueCapacity, overloadPolicy);
+    }
+
+    private List<Map<String, DeviceState>> rehydrate() {
+        List<Map<String, DeviceState>> partitionStates = new ArrayList<>(partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            partitionStates.add(new HashMap<>());
+        }
+
+        try {
+            Map<String, DeviceState> stored = gpsDataService.loadDeviceStates();
+            stored.forEach((deviceId, state) -> partitionStates.get(partitionOf(deviceId)).put(deviceId, state));
+            log.info("Rehydrated state for {} devices{}", stored.size(),
+                    clusterNode.isClustered() ? " held by node " + clusterNode.getId() : "");
+        } catch (Exception e) {
+            // Not fatal: partitions seed devices lazily from Redis on first sight
+            log.warn("Could not rehydrate device state, starting empty: {}", e.getMessage());
+        }
+        return partitionStates;
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        for (Thread worker : workers) {
+            worker.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    /**
+     * Enqueues a reading for asynchronous storage. Returns false if the reading was
+     * rejected because its partition is full, so the caller can NACK it.
+     */
+    public boolean submit(GpsData gpsData) {
+        return submit(gpsData, true);
+    }
+
+    /**
+     * Like submit, but never waits: under BLOCK a full partition rejects the reading at
+     * once. For event loops such as the binary ingest selector, where one wait would
+     * stall every connection.
+     */
+    public boolean trySubmit(GpsData gpsData) {
+        return submit(gpsData, false);
+    }
+
+    private boolean submit(GpsData gpsData, boolean mayBlock) {
+        BlockingQueue<GpsData> queue = queues[partitionOf(gpsData.getDeviceId())];
+
+        switch (overloadPolicy) {
+            case DROP_OLDEST:
+                while (!queue.offer(gpsData)) {
+                    if (queue.poll() != null) {
+                        dropped.increment();
+                    }
+                }
+                break;
+            case REJECT:
+                if (!queue.offer(gpsData)) {
+                    rejected.increment();
+                    return false;
+                }
+                break;
+            case BLOCK:
+            default:
+                try {
+                    boolean offered = mayBlock
+                            ? queue.offer(gpsData, blockTimeoutMs, TimeUnit.MILLISECONDS)
+                            : queue.offer(gpsData);
+                    if (!offered) {
+                        rejected.increment();
+                        return false;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    rejected.increment();
+                    return false;
+                }
+                break;
+        }
+
+        enqueued.increment();
+        return true;
+    }
+
+    private int partitionOf(String deviceId) {
+        // Same device, same partition: per-device ordering survives the queue
+        return deviceId == null ? 0 : Math.floorMod(deviceId.hashCode(), partitionCount);
+    }
+
+    private void drain(BlockingQueue<GpsData> queue, Map<String, DeviceState> deviceStates) {
+        ReorderBuffer reorderBuffer = new ReorderBuffer(maxLatenessMs, dedupWindowMs, reorderIdleEvictMs);
+        List<GpsData> batch = new ArrayList<>(batchSize);
+        List<GpsData> released = new ArrayList<>(batchSize);
+        List<GpsData> lateReadings = new ArrayList<>();
+        List<AlertRecord> pendingAlerts = new ArrayList<>();
+        List<String> expiredDevices = new ArrayList<>();
+        TimerWheel<String> offlineWheel = startOfflineWheel(deviceStates);
+        // Wake up often enough to release held readings of devices that went quiet
+        long pollMs = Math.max(1, Math.min(Math.min(stateFlushIntervalMs, 1000), maxLatenessMs > 0 ? maxLatenessMs : 1000));
+        long nextFlush = System.currentTimeMillis() + stateFlushIntervalMs;
+
+        while (running || !queue.isEmpty()) {
+            try {
+                GpsData first = queue.poll(pollMs, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    admit(batch, reorderBuffer, lateReadings);
+                }
+                reorderBuffer.release(System.currentTimeMillis(), released);
+                process(released, deviceStates, pendingAlerts);
+                saveLate(lateReadings);
+                armOfflineTimers(released, deviceStates, offlineWheel);
+                offlineWheel.advance(System.currentTimeMillis(), expiredDevices::add);
+                expire(expiredDevices, deviceStates, pendingAlerts);
+            } catch (InterruptedException e) {
+                // Shutdown: fall through and flush whatever is still queued or held
+                queue.drainTo(batch);
+                admit(batch, reorderBuffer, lateReadings);
+                reorderBuffer.releaseAll(released);
+                process(released, deviceStates, pendingAlerts);
+                saveLate(lateReadings);
+                flushStates(deviceStates, pendingAlerts);
+                return;
+            } finally {
+                batch.clear();
+                released.clear();
+                lateReadings.clear();
+                expiredDevices.clear();
+            }
+
+            if (System.currentTimeMillis() >= nextFlush) {
+                flushStates(deviceStates, pendingAlerts);
+                reorderBuffer.evictIdle(System.currentTimeMillis());
+                nextFlush = System.currentTimeMillis() + stateFlushIntervalMs;
+            }
+        }
+        reorderBuffer.releaseAll(released);
+        process(released, deviceStates, pendingAlerts);
+        flushStates(deviceStates, pendingAlerts);
+    }
+
+    /**
+     * Arms a timer for every device the partition already knows, giving rehydrated
+     * devices a full threshold after startup to report in
+     */
+    private TimerWheel<String> startOfflineWheel(Map<String, DeviceState> deviceStates) {
+        long now = System.currentTimeMillis();
+        TimerWheel<String> wheel = new TimerWheel<>(OFFLINE_TICK_MS, OFFLINE_WHEEL_SLOTS, now);
+        deviceStates.forEach((deviceId, state) -> {
+            if (!"OFFLINE".equals(state.getStatus())) {
+                state.setOfflineTimer(wheel.newTimer(deviceId));
+                state.getOfflineTimer().reset(now + OFFLINE_THRESHOLD_MS);
+                offlineTimers.increment();
+            }
+        });
+        return wheel;
+    }
+
+    private void armOfflineTimers(List<GpsData> released, Map<String, DeviceState> deviceStates,
+                                  TimerWheel<String> wheel) {
+        if (released.isEmpty()) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + OFFLINE_THRESHOLD_MS;
+        for (GpsData gpsData : released) {
+            DeviceState state = deviceStates.get(gpsData.getDeviceId());
+            if (state == null) {
+                continue;
+            }
+            if (state.getOfflineTimer() == null) {
+                state.setOfflineTimer(wheel.newTimer(gpsData.getDeviceId()));
+            }
+            if (!state.getOfflineTimer().isArmed()) {
+                offlineTimers.increment();
+            }
+            state.getOfflineTimer().reset(deadline);
+        }
+    }
+
+    /**
+     * Handles the devices whose offline deadline passed: each is marked offline, unless in
+     * cluster mode another node has taken its lease, in which case its state is handed over
+     */
+    private void expire(List<String> expiredDevices, Map<String, DeviceState> deviceStates,
+                        List<AlertRecord> pendingAlerts) {
+        if (expiredDevices.isEmpty()) {
+            return;
+        }
+        offlineTimers.add(-expiredDevices.size());
+        expiredDevices.removeIf(deviceId -> {
+            DeviceState state = deviceStates.get(deviceId);
+            return state == null || "OFFLINE".equals(state.getStatus());
+        });
+        if (expiredDevices.isEmpty()) {
+            return;
+        }
+
+        Set<String> elsewhere = Collections.emptySet();
+        if (clusterNode.isClustered()) {
+            try {
+                elsewhere = gpsDataService.leasedElsewhere(expiredDevices);
+            } catch (Exception e) {
+                // Not knowing who holds them, check again shortly rather than raise alerts that may be false
+                log.warn("Could not check the leases of {} devices: {}", expiredDevices.size(), e.getMessage());
+                long retryAt = System.currentTimeMillis() + LEASE_RETRY_MS;
+                for (String deviceId : expiredDevices) {
+                    deviceStates.get(deviceId).getOfflineTimer().reset(retryAt);
+                    offlineTimers.increment();
+                }
+                return;
+            }
+        }
+
+        for (String deviceId : expiredDevices) {
+            if (elsewhere.contains(deviceId)) {
+                deviceStates.remove(deviceId);
+                handedOver.increment();
+                log.info("Device {} now reports to another node, dropping its state here", deviceId);
+            } else {
+                markOffline(deviceId, deviceStates.get(deviceId), pendingAlerts);
+            }
+        }
+    }
+
+    private void markOffline(String deviceId, DeviceState state, List<AlertRecord> pendingAlerts) {
+        state.setStatus("OFFLINE");
+        state.setDirty(true);
+        if (!state.isOfflineAlertRaised()) {
+            state.setOfflineAlertRaised(true);
+            pendingAlerts.add(GpsDataService.offlineAlert(deviceId, state.getLastFix(), AlertRecord.State.RAISED));
+        }
+        offlineEvents.increment();
+        log.info("Device {} went offline (no reading for {} minutes)", deviceId, GpsDataService.OFFLINE_THRESHOLD_MINUTES);
+
+        for (IngestListener listener : listeners) {
+            try {
+                listener.onDeviceOffline(deviceId, state.getLastFix());
+            } catch (Exception e) {
+                log.error("Ingest listener {} failed: ", listener.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    private void admit(List<GpsData> batch, ReorderBuffer reorderBuffer, List<GpsData> lateReadings) {
+        long now = System.currentTimeMillis();
+        for (GpsData gpsData : batch) {
+            if (gpsData.getDeviceId() == null) {
+                log.warn("Dropping GPS reading without device ID");
+                continue;
+            }
+            switch (reorderBuffer.offer(gpsData, now)) {
+                case DUPLICATE:
+                    duplicates.increment();
+                    break;
+                case LATE:
+                    late.increment();
+                    lateReadings.add(gpsData);
+                    break;
+                case EXPIRED:
+                    expired.increment();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Readings that arrive after a newer one was released are kept in the track but
+     * skip state, statistics, alerts and listeners, which have already moved past them
+     */
+    private void saveLate(List<GpsData> lateReadings) {
+        if (lateReadings.isEmpty()) {
+            return;
+        }
+        try {
+            gpsDataService.saveTrackOnly(lateReadings);
+        } catch (Exception e) {
+            batchFailures.increment();
+            log.error("Error saving {} late readings: ", lateReadings.size(), e);
+        }
+    }
+
+    private void flushStates(Map<String, DeviceState> deviceStates, List<AlertRecord> pendingAlerts) {
+        try {
+            gpsDataService.flushDeviceStates(deviceStates, pendingAlerts);
+        } catch (Exception e) {
+            // States stay dirty and alerts pending; both are retried on the next flush
+            log.error("Error flushing device state: ", e);
+        }
+    }
+
+    private void process(List<GpsData> batch, Map<String, DeviceState> deviceStates, List<AlertRecord> pendingAlerts) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        try {
+            // Readings already behind the stored state are dropped like the window's expired ones
+            expired.add(gpsDataService.saveGpsDataBatch(batch, deviceStates, pendingAlerts));
+        } catch (Exception e) {
+            batchFailures.increment();
+            log.error("Error saving ingest batch of {} readings: ", batch.size(), e);
+            return;
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        for (IngestListener listener : listeners) {
+            try {
+                listener.onSaved(batch);
+            } catch (Exception e) {
+                log.error("Ingest listener {} failed: ", listener.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        int[] depths = new int[queues.length];
+        int totalDepth = 0;
+        for (int i = 0; i < queues.length; i++) {
+            depths[i] = queues[i].size();
+            totalDepth += depths[i];
+        }
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("partitions", partitionCount);
+        metrics.put("queueCapacity", queueCapacity);
+        metrics.put("overloadPolicy", overloadPolicy);
+        metrics.put("queueDepth", totalDepth);
+        metrics.put("partitionDepths", depths);
+        metrics.put("enqueued", enqueued.sum());
+        metrics.put("dropped", dropped.sum());
+        metrics.put("rejected", rejected.sum());
+        metrics.put("batchFailures", batchFailures.sum());
+        metrics.put("reorderMaxLatenessMs", maxLatenessMs);
+        metrics.put("duplicates", duplicates.sum());
+        metrics.put("late", late.sum());
+        metrics.put("expired", expired.sum());
+        metrics.put("offlineTimers", offlineTimers.sum());
+        metrics.put("offlineEvents", offlineEvents.sum());
+        metrics.put("handedOver", handedOver.sum());
+        return metrics;
+    }
+}
@@ -0,0 +1,10 @@
+package com.gpstracker.service.ingest;
+
+/**
+ * What a transport thread does when a partition queue is full
+ */
+public enum OverloadPolicy {
+    BLOCK,       // wait up to the block timeout for space, then reject
+    DROP_OLDEST, // evict the oldest queued reading to make room
+    REJECT       // refuse immediately so the transport can NACK
+}
@@ -0,0 +1,197 @@
+package com.gpstracker.service.ingest;
+
+import com.gpstracker.model.GpsData;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Per-partition reorder window. Each device's readings are held for up to the lateness
+ * bound, released in device-time order, and retransmitted copies are recognised by their
+ * device timestamp and dropped. Owned by one partition worker, so nothing here is locked.
+ *
+ * Every device timestamp released or admitted late is remembered for the dedup window,
+ * measured back from the device's newest released reading, so a copy of anything inside
+ * that window is caught however often it is resent. A reading older than the window can
+ * no longer be checked and is dropped as expired rather than risk a duplicate write.
+ */
+final class ReorderBuffer {
+
+    enum Admission {
+        BUFFERED,
+        DUPLICATE,
+        // Older than a reading already released; it can no longer be put in order
+        LATE,
+        // Older than the dedup window, so it cannot be told apart from a duplicate
+        EXPIRED
+    }
+
+    private final long maxLatenessMs;
+    private final long dedupWindowMs;
+    private final long idleEvictMs;
+    private final Map<String, DeviceWindow> windows = new HashMap<>();
+    private final Set<DeviceWindow> pendingWindows = new HashSet<>();
+
+    ReorderBuffer(long maxLatenessMs, long dedupWindowMs, long idleEvictMs) {
+        this.maxLatenessMs = maxLatenessMs;
+        this.dedupWindowMs = Math.max(dedupWindowMs, maxLatenessMs);
+        this.idleEvictMs = idleEvictMs;
+    }
+
+    Admission offer(GpsData gpsData, long now) {
+        if (gpsData.getTimestamp() == null) {
+            gpsData.setTimestamp(LocalDateTime.now(ZoneOffset.UTC));
+        }
+        long deviceTime = gpsData.getTimestamp().toInstant(ZoneOffset.UTC).toEpochMilli();
+        DeviceWindow window = windows.computeIfAbsent(gpsData.getDeviceId(), k -> new DeviceWindow(dedupWindowMs));
+
+        if (window.pending.containsKey(deviceTime)) {
+            return Admission.DUPLICATE;
+        }
+        if (deviceTime <= window.lastReleased) {
+            if (window.seen.contains(deviceTime)) {
+                return Admission.DUPLICATE;
+            }
+            if (deviceTime < window.lastReleased - dedupWindowMs) {
+                return Admission.EXPIRED;
+            }
+            // Remembered like a released reading, so its retransmissions are duplicates
+            window.seen.add(deviceTime, window.lastReleased);
+            window.lastArrival = now;
+            return Admission.LATE;
+        }
+
+        window.pending.put(deviceTime, gpsData);
+        window.maxSeen = Math.max(window.maxSeen, deviceTime);
+        window.lastArrival = now;
+        pendingWindows.add(window);
+        return Admission.BUFFERED;
+    }
+
+    /**
+     * Moves every reading that can no longer be overtaken into out: those more than the
+     * lateness bound behind the newest reading of their device, and all readings of a
+     * device that has been quiet for the lateness bound.
+     */
+    void release(long now, List<GpsData> out) {
+        Iterator<DeviceWindow> it = pendingWindows.iterator();
+        while (it.hasNext()) {
+            DeviceWindow window = it.next();
+            long watermark = now - window.lastArrival >= maxLatenessMs
+                    ? Long.MAX_VALUE
+                    : window.maxSeen - maxLatenessMs;
+            window.releaseUpTo(watermark, out);
+            if (window.pending.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    void releaseAll(List<GpsData> out) {
+        for (DeviceWindow window : pendingWindows) {
+            window.releaseUpTo(Long.MAX_VALUE, out);
+        }
+        pendingWindows.clear();
+    }
+
+    /**
+     * Forgets devices that have been quiet long enough that a retransmission is unlikely
+     */
+    void evictIdle(long now) {
+        windows.values().removeIf(window -> window.pending.isEmpty() && now - window.lastArrival >= idleEvictMs);
+    }
+
+    private static final class DeviceWindow {
+        private final TreeMap<Long, GpsData> pending = new TreeMap<>();
+        private final SeenTimes seen;
+        private long maxSeen = Long.MIN_VALUE;
+        private long lastReleased = Long.MIN_VALUE;
+        private long lastArrival;
+
+        private DeviceWindow(long dedupWindowMs) {
+            this.seen = new SeenTimes(dedupWindowMs);
+        }
+
+        private void releaseUpTo(long watermark, List<GpsData> out) {
+            while (!pending.isEmpty() && pending.firstKey() <= watermark) {
+                Map.Entry<Long, GpsData> first = pending.pollFirstEntry();
+                out.add(first.getValue());
+                lastReleased = first.getKey();
+                seen.add(lastReleased, lastReleased);
+            }
+        }
+    }
+
+    /**
+     * Sorted device timestamps of one device, kept for the dedup window. Released readings
+     * append in order; late ones are inserted. Entries that fell out of the window are only
+     * dropped when the array would otherwise grow, which keeps trimming amortized.
+     */
+    private static final class SeenTimes {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private final long windowMs;
+        private long[] times = new long[INITIAL_CAPACITY];
+        private int count;
+
+        private SeenTimes(long windowMs) {
+            this.windowMs = windowMs;
+        }
+
+        private boolean contains(long time) {
+            return Arrays.binarySearch(times, 0, count, time) >= 0;
+        }
+
+        /**
+         * Adds a timestamp; newest is the device's newest released time, which the window is measured from
+         */
+        private void add(long time, long newest) {
+            if (count > 0 && time <= times[count - 1]) {
+                int index = Arrays.binarySearch(times, 0, count, time);
+                if (index >= 0) {
+                    return;
+                }
+                index = -index - 1;
+                index -= makeRoom(newest);
+                if (index < 0) {
+                    return; // older than the window itself
+                }
+                System.arraycopy(times, index, times, index + 1, count - index);
+                times[index] = time;
+                count++;
+                return;
+            }
+            makeRoom(newest);
+            times[count++] = time;
+        }
+
+        /**
+         * Ensures space for one more entry; returns how many leading entries were dropped
+         */
+        private int makeRoom(long newest) {
+            if (count < times.length) {
+                return 0;
+            }
+            int expired = Arrays.binarySearch(times, 0, count, newest - windowMs);
+            expired = expired >= 0 ? expired : -expired - 1;
+            if (expired > 0) {
+                System.arraycopy(times, expired, times, 0, count - expired);
+                count -= expired;
+            }
+            if (count == times.length) {
+                times = Arrays.copyOf(times, times.length * 2);
+            } else if (times.length > INITIAL_CAPACITY && count < times.length / 4) {
+                times = Arrays.copyOf(times, Math.max(INITIAL_CAPACITY, count * 2));
+            }
+            return expired;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.gpstracker.service.ingest;
+
+import lombok.Data;
+
+/**
+ * Where one device stands with one alert rule, kept in its DeviceState
+ */
+@Data
+public class RuleState {
+    private boolean active;
+    private long breachSince; // epoch millis of the first reading past threshold, 0 if none
+    private long clearedAt; // epoch millis the alert last cleared, 0 if never
+}
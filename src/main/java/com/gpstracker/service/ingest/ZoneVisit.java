@@ -0,0 +1,14 @@
+package com.gpstracker.service.ingest;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * A device's stay in one geofence zone, kept in its DeviceState
+ */
+@Data
+@AllArgsConstructor
+public class ZoneVisit {
+    private long enteredAt; // epoch millis of the first reading inside
+    private boolean dwellReported;
+}
@@ -0,0 +1,391 @@
+package com.gpstracker.service.proximity;
+
+import com.gpstracker.model.GpsData;
+import com.gpstracker.model.NearbyDevice;
+import com.gpstracker.service.geofence.GeofenceService;
+import com.gpstracker.service.ingest.IngestListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * In-memory uniform grid of every online device's latest position, answering radius,
+ * bounding box and nearest-device queries. Updated from the ingest workers after each
+ * saved batch; a device leaves the index when it goes offline.
+ *
+ * A device is only ever moved by its own partition worker, but devices of different
+ * partitions share cells, so a cell set is only added to or dropped inside the cell map's
+ * compute. Empty cells are removed, which keeps the map to the cells with devices in them.
+ * A device seen in two cells during a move is counted only in the cell its current
+ * position names.
+ *
+ * Longitude cells wrap at the antimeridian, so radius and nearest queries near +-180
+ * find devices on the other side. This is exact when gps.proximity.cell-degrees divides
+ * 360; otherwise the seam cell is slightly narrower than the rest.
+ */
+@Component
+public class ProximityIndex implements IngestListener {
+
+    private static final double EARTH_RADIUS_KM = 6371.0;
+    private static final double KM_PER_DEGREE = Math.toRadians(1) * EARTH_RADIUS_KM;
+    // Queries covering more cells than this scan every position instead
+    private static final int MAX_SCAN_CELLS = 4096;
+    // Rings a nearest query grows before it falls back to a full scan
+    private static final int MAX_NEAREST_RINGS = 32;
+    public static final int MAX_RESULTS = 10000;
+
+    @Value("${gps.proximity.cell-degrees:0.01}")
+    private double cellDegrees;
+
+    @Autowired
+    private GeofenceService geofenceService;
+
+    private final Map<String, Position> positions = new ConcurrentHashMap<>();
+    private final Map<Long, Set<String>> cells = new ConcurrentHashMap<>();
+
+    // Longitude cells around the globe, from the cell of -180
+    private long firstLonCell;
+    private long lonCellCount;
+
+    @PostConstruct
+    public void init() {
+        firstLonCell = cell(-180.0);
+        lonCellCount = Math.max(1, cell(180.0) - firstLonCell);
+    }
+
+    @Override
+    public void onSaved(List<GpsData> batch) {
+        for (GpsData gpsData : batch) {
+            update(gpsData);
+        }
+    }
+
+    @Override
+    public void onDeviceOffline(String deviceId, GpsData lastFix) {
+        Position removed = positions.remove(deviceId);
+        if (removed != null) {
+            removeFromCell(removed.cellKey, deviceId);
+        }
+    }
+
+    void update(GpsData gpsData) {
+        double lat = gpsData.getLatitude();
+        double lon = gpsData.getLongitude();
+        if (Double.isNaN(lat) || Double.isNaN(lon)) {
+            return;
+        }
+
+        long cellKey = cellKey(cell(lat), cell(lon));
+        Position position = new Position(gpsData, cellKey);
+        Position previous = positions.put(gpsData.getDeviceId(), position);
+        if (previous == null || previous.cellKey != cellKey) {
+            cells.compute(cellKey, (key, deviceIds) -> {
+                Set<String> cell = deviceIds != null ? deviceIds : ConcurrentHashMap.<String>newKeySet();
+                cell.add(position.deviceId);
+                return cell;
+            });
+            if (previous != null) {
+                removeFromCell(previous.cellKey, position.deviceId);
+            }
+        }
+    }
+
+    /**
+     * Devices within radiusKm of the point, nearest first
+     */
+    public List<NearbyDevice> withinRadius(double lat, double lon, double radiusKm, String fleetId, int limit) {
+        checkPoint(lat, lon);
+        if (!(radiusKm > 0)) {
+            throw new IllegalArgumentException("radius must be positive");
+        }
+        checkLimit(limit);
+
+        double latSpan = radiusKm / KM_PER_DEGREE;
+        double lonSpan = radiusKm / (KM_PER_DEGREE * Math.max(Math.cos(Math.toRadians(Math.min(89.0, Math.abs(lat) + latSpan))), 0.01));
+
+        double minLon = lon - lonSpan;
+        double maxLon = lon + lonSpan;
+        if (Math.abs(lat) + latSpan >= 90.0 || maxLon - minLon >= 360.0) {
+            // Around a pole every longitude is in reach
+            minLon = -180.0;
+            maxLon = 180.0;
+        }
+
+        List<Candidate> found = new ArrayList<>();
+        forEachInWrappedBox(lat - latSpan, minLon, lat + latSpan, maxLon, position -> {
+            if (matchesFleet(position, fleetId)) {
+                double distance = haversine(lat, lon, position.lat, position.lon);
+                if (distance <= radiusKm) {
+                    found.add(new Candidate(position, distance));
+                }
+            }
+        });
+
+        found.sort(Comparator.comparingDouble(candidate -> candidate.distance));
+        List<NearbyDevice> result = new ArrayList<>(Math.min(found.size(), limit));
+        for (int i = 0; i < found.size() && i < limit; i++) {
+            result.add(found.get(i).toNearbyDevice());
+        }
+        return result;
+    }
+
+    public List<NearbyDevice> withinBox(double minLat, double minLon, double maxLat, double maxLon,
+                                        String fleetId, int limit) {
+        checkPoint(minLat, minLon);
+        checkPoint(maxLat, maxLon);
+        if (minLat > maxLat || minLon > maxLon) {
+            throw new IllegalArgumentException("Bounding box minimum must not exceed its maximum");
+        }
+        checkLimit(limit);
+
+        List<NearbyDevice> result = new ArrayList<>();
+        forEachInBox(minLat, minLon, maxLat, maxLon, position -> {
+            if (result.size() < limit && matchesFleet(position, fleetId)) {
+                result.add(new Candidate(position, Double.NaN).toNearbyDevice());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * The k devices nearest to the point, nearest first, optionally no further than
+     * maxRadiusKm (0 for no bound). Grows square rings of cells around the point until
+     * no unvisited cell can hold anything nearer than the k-th device found.
+     */
+    public List<NearbyDevice> nearest(double lat, double lon, int k, double maxRadiusKm, String fleetId) {
+        checkPoint(lat, lon);
+        checkLimit(k);
+        if (maxRadiusKm < 0) {
+            throw new IllegalArgumentException("maxRadius must not be negative");
+        }
+        double radiusBound = maxRadiusKm > 0 ? maxRadiusKm : Double.POSITIVE_INFINITY;
+
+        // Farthest of the best k at the head
+        PriorityQueue<Candidate> best = new PriorityQueue<>(k + 1,
+                Comparator.comparingDouble((Candidate candidate) -> candidate.distance).reversed());
+        Consumer<Position> consider = position -> {
+            if (!matchesFleet(position, fleetId)) {
+                return;
+            }
+            double distance = haversine(lat, lon, position.lat, position.lon);
+            if (distance <= radiusBound && (best.size() < k || distance < best.peek().distance)) {
+                best.add(new Candidate(position, distance));
+                if (best.size() > k) {
+                    best.poll();
+                }
+            }
+        };
+
+        long centerLat = cell(lat);
+        long centerLon = cell(lon);
+        boolean complete = false;
+        // Beyond half the globe a ring would visit wrapped cells twice
+        for (int ring = 0; ring <= MAX_NEAREST_RINGS && 2L * ring + 1 <= lonCellCount && !positions.isEmpty(); ring++) {
+            forEachInRing(centerLat, centerLon, ring, consider);
+
+            double reach = ringReachKm(lat, lon, centerLat, centerLon, ring);
+            if ((best.size() == k && best.peek().distance <= reach) || reach >= radiusBound) {
+                complete = true;
+                break;
+            }
+        }
+        if (!complete && !positions.isEmpty()) {
+            // Sparse area or a very large k: nothing nearby was enough, so look at everything
+            best.clear();
+            positions.values().forEach(consider);
+        }
+
+        List<Candidate> sorted = new ArrayList<>(best);
+        sorted.sort(Comparator.comparingDouble(candidate -> candidate.distance));
+        List<NearbyDevice> result = new ArrayList<>(sorted.size());
+        for (Candidate candidate : sorted) {
+            result.add(candidate.toNearbyDevice());
+        }
+        return result;
+    }
+
+    public int size() {
+        return positions.size();
+    }
+
+    /**
+     * Like forEachInBox, for a longitude range that may run past +-180 (at most 360 wide)
+     */
+    private void forEachInWrappedBox(double minLat, double minLon, double maxLat, double maxLon, Consumer<Position> action) {
+        if (minLon < -180.0) {
+            forEachInBox(minLat, minLon + 360.0, maxLat, 180.0, action);
+            forEachInBox(minLat, -180.0, maxLat, maxLon, action);
+        } else if (maxLon > 180.0) {
+            forEachInBox(minLat, minLon, maxLat, 180.0, action);
+            forEachInBox(minLat, -180.0, maxLat, maxLon - 360.0, action);
+        } else {
+            forEachInBox(minLat, minLon, maxLat, maxLon, action);
+        }
+    }
+
+    private void forEachInBox(double minLat, double minLon, double maxLat, double maxLon, Consumer<Position> action) {
+        long fromLat = cell(minLat), toLat = cell(maxLat);
+        long fromLon = cell(minLon), toLon = cell(maxLon);
+        double cellCount = (double) (toLat - fromLat + 1) * (toLon - fromLon + 1);
+
+        if (cellCount > MAX_SCAN_CELLS || cellCount > positions.size()) {
+            for (Position position : positions.values()) {
+                if (position.lat >= minLat && position.lat <= maxLat && position.lon >= minLon && position.lon <= maxLon) {
+                    action.accept(position);
+                }
+            }
+            return;
+        }
+
+        for (long y = fromLat; y <= toLat; y++) {
+            for (long x = fromLon; x <= toLon; x++) {
+                forEachInCell(cellKey(y, x), position -> {
+                    if (position.lat >= minLat && position.lat <= maxLat && position.lon >= minLon && position.lon <= maxLon) {
+                        action.accept(position);
+                    }
+                });
+            }
+        }
+    }
+
+    private void forEachInRing(long centerLat, long centerLon, int ring, Consumer<Position> action) {
+        if (ring == 0) {
+            forEachInCell(cellKey(centerLat, centerLon), action);
+            return;
+        }
+        for (long x = centerLon - ring; x <= centerLon + ring; x++) {
+            forEachInCell(cellKey(centerLat - ring, x), action);
+            forEachInCell(cellKey(centerLat + ring, x), action);
+        }
+        for (long y = centerLat - ring + 1; y <= centerLat + ring - 1; y++) {
+            forEachInCell(cellKey(y, centerLon - ring), action);
+            forEachInCell(cellKey(y, centerLon + ring), action);
+        }
+    }
+
+    private void forEachInCell(long cellKey, Consumer<Position> action) {
+        Set<String> deviceIds = cells.get(cellKey);
+        if (deviceIds == null) {
+            return;
+        }
+        for (String deviceId : deviceIds) {
+            Position position = positions.get(deviceId);
+            if (position != null && position.cellKey == cellKey) {
+                action.accept(position);
+            }
+        }
+    }
+
+    /**
+     * Lower bound on the distance from the point to any position outside the cells
+     * visited up to this ring
+     */
+    private double ringReachKm(double lat, double lon, long centerLat, long centerLon, int ring) {
+        double minLat = (centerLat - ring) * cellDegrees;
+        double maxLat = (centerLat + ring + 1) * cellDegrees;
+        double minLon = (centerLon - ring) * cellDegrees;
+        double maxLon = (centerLon + ring + 1) * cellDegrees;
+
+        double latGap = Math.min(lat - minLat, maxLat - lat) * KM_PER_DEGREE;
+        // Degrees of longitude are shortest at the block's poleward edge
+        double cosLat = Math.cos(Math.toRadians(Math.min(90.0, Math.max(Math.abs(minLat), Math.abs(maxLat)))));
+        double lonGap = Math.min(lon - minLon, maxLon - lon) * KM_PER_DEGREE * cosLat;
+        // Slightly under the flat-plane figure so haversine rounding never stops the search early
+        return Math.min(latGap, lonGap) * 0.995;
+    }
+
+    private boolean matchesFleet(Position position, String fleetId) {
+        return fleetId == null || fleetId.equals(geofenceService.getDeviceFleet(position.deviceId));
+    }
+
+    private void removeFromCell(long cellKey, String deviceId) {
+        cells.computeIfPresent(cellKey, (key, deviceIds) -> {
+            deviceIds.remove(deviceId);
+            return deviceIds.isEmpty() ? null : deviceIds;
+        });
+    }
+
+    private long cell(double degrees) {
+        return (long) Math.floor(degrees / cellDegrees);
+    }
+
+    private long cellKey(long latCell, long lonCell) {
+        // +180 and -180 are the same meridian, and cells past it continue on the other side
+        long wrapped = Math.floorMod(lonCell - firstLonCell, lonCellCount) + firstLonCell;
+        return (latCell << 32) ^ (wrapped & 0xffffffffL);
+    }
+
+    private static void checkPoint(double lat, double lon) {
+        if (!(lat >= -90 && lat <= 90 && lon >= -180 && lon <= 180)) {
+            throw new IllegalArgumentException("Invalid coordinates: " + lat + "," + lon);
+        }
+    }
+
+    private static void checkLimit(int limit) {
+        if (limit < 1 || limit > MAX_RESULTS) {
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_RESULTS);
+        }
+    }
+
+    private static double haversine(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private static final class Position {
+        private final String deviceId;
+        private final double lat;
+        private final double lon;
+        private final double speed;
+        private final double heading;
+        private final LocalDateTime timestamp;
+        private final long cellKey;
+
+        private Position(GpsData gpsData, long cellKey) {
+            this.deviceId = gpsData.getDeviceId();
+            this.lat = gpsData.getLatitude();
+            this.lon = gpsData.getLongitude();
+            this.speed = gpsData.getSpeed();
+            this.heading = gpsData.getHeading();
+            this.timestamp = gpsData.getTimestamp();
+            this.cellKey = cellKey;
+        }
+    }
+
+    private static final class Candidate {
+        private final Position position;
+        private final double distance;
+
+        private Candidate(Position position, double distance) {
+            this.position = position;
+            this.distance = distance;
+        }
+
+        private NearbyDevice toNearbyDevice() {
+            NearbyDevice device = new NearbyDevice();
+            device.setDeviceId(position.deviceId);
+            device.setLatitude(position.lat);
+            device.setLongitude(position.lon);
+            device.setSpeed(position.speed);
+            device.setHeading(position.heading);
+            device.setTimestamp(position.timestamp);
+            device.setDistance(Double.isNaN(distance) ? null : distance);
+            return device;
+        }
+    }
+}
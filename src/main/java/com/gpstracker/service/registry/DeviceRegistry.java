@@ -0,0 +1,316 @@
+package com.gpstracker.service.registry;
+
+import com.gpstracker.model.DeviceInfo;
+import com.gpstracker.service.geofence.GeofenceService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations.TypedTuple;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Registry of every device that reported in the last 35 days.
+ *
+ * gps:device:<id> holds firstSeen and lastSeen; fleet membership stays with the geofence
+ * members map. Devices are spread over SHARD_COUNT sorted sets gps:devices:active:<n>,
+ * scored by last-seen time, so "active since T" is a range read and batch jobs can walk
+ * the shards in parallel. Entries are written with the device state flush, not per reading.
+ */
+@Slf4j
+@Service
+public class DeviceRegistry {
+
+    private static final String DEVICE_KEY_PREFIX = "gps:device:";
+    private static final String ACTIVE_KEY_PREFIX = "gps:devices:active:";
+    // Part of where a device is stored, so not configurable
+    public static final int SHARD_COUNT = 16;
+    // Longer than the 30 days of history movement patterns are built from
+    private static final int REGISTRY_RETENTION_DAYS = 35;
+    private static final long REGISTRY_RETENTION_SECONDS = TimeUnit.DAYS.toSeconds(REGISTRY_RETENTION_DAYS);
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int SCAN_CHUNK_SIZE = 1000;
+    // Bounds one page's work when a fleet filter matches few devices
+    private static final int MAX_SCANNED_PER_PAGE = 20000;
+
+    @Value("${gps.registry.batch-parallelism:4}")
+    private int batchParallelism;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private GeofenceService geofenceService;
+
+    private ExecutorService batchExecutor;
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger threadCount = new AtomicInteger();
+        batchExecutor = Executors.newFixedThreadPool(batchParallelism, runnable -> {
+            Thread thread = new Thread(runnable, "gps-registry-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        batchExecutor.shutdownNow();
+    }
+
+    /**
+     * Queues the registry update for one flushed device on a pipelined connection
+     */
+    public void write(RedisConnection connection, String deviceId, LocalDateTime lastSeen) {
+        byte[] deviceKey = raw(getDeviceKey(deviceId));
+        byte[] seen = raw(lastSeen.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+
+        connection.hashCommands().hSetNX(deviceKey, raw("firstSeen"), seen);
+        connection.hashCommands().hSet(deviceKey, raw("lastSeen"), seen);
+        connection.keyCommands().expire(deviceKey, REGISTRY_RETENTION_SECONDS);
+        connection.zSetCommands().zAdd(raw(getActiveKey(shardOf(deviceId))), toMillis(lastSeen), raw(deviceId));
+    }
+
+    public DeviceInfo getDevice(String deviceId) {
+        Map<String, String> fields = stringRedisTemplate.<String, String>opsForHash().entries(getDeviceKey(deviceId));
+        if (fields.isEmpty()) {
+            return null;
+        }
+        return toDeviceInfo(deviceId, fields.get("firstSeen"), fields.get("lastSeen"));
+    }
+
+    /**
+     * One page of devices seen at or after activeSince (all devices if null), optionally
+     * of one fleet, in shard order and by last-seen time within a shard. Pass the previous
+     * page's nextCursor to continue. A device reporting while a listing is paged may be
+     * returned again, but none is skipped; a filtered page can come back short.
+     */
+    public DevicePage listDevices(String fleetId, LocalDateTime activeSince, String cursor, int limit) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE_SIZE);
+        }
+
+        double since = activeSince != null ? toMillis(activeSince) : 0;
+        Position position = cursor != null ? decodeCursor(cursor) : new Position(0, since, 0);
+        List<String> deviceIds = new ArrayList<>(limit);
+        List<Double> lastSeen = new ArrayList<>(limit);
+        int scanned = 0;
+
+        while (position.shard < SHARD_COUNT && deviceIds.size() < limit && scanned < MAX_SCANNED_PER_PAGE) {
+            Set<TypedTuple<String>> entries = readChunk(position);
+            int consumed = 0;
+            for (TypedTuple<String> entry : entries) {
+                position.advance(entry.getScore());
+                consumed++;
+                if (fleetId == null || fleetId.equals(geofenceService.getDeviceFleet(entry.getValue()))) {
+                    deviceIds.add(entry.getValue());
+                    lastSeen.add(entry.getScore());
+                    if (deviceIds.size() == limit) {
+                        break;
+                    }
+                }
+            }
+            scanned += consumed;
+
+            if (consumed == entries.size() && entries.size() < SCAN_CHUNK_SIZE) {
+                position = new Position(position.shard + 1, since, 0);
+            }
+        }
+
+        DevicePage page = new DevicePage();
+        page.setDevices(loadDevices(deviceIds, lastSeen));
+        page.setNextCursor(position.shard < SHARD_COUNT ? encodeCursor(position) : null);
+        return page;
+    }
+
+    /**
+     * Runs action for every device seen at or after activeSince, each shard on one of
+     * the batch threads, and returns the number of devices visited. Every device is
+     * visited at most once; an action failing for one device is logged and skipped.
+     */
+    public long forEachActiveDevice(LocalDateTime activeSince, Consumer<String> action) throws InterruptedException {
+        double since = toMillis(activeSince);
+        List<Future<Long>> shards = new ArrayList<>(SHARD_COUNT);
+        for (int shard = 0; shard < SHARD_COUNT; shard++) {
+            int current = shard;
+            shards.add(batchExecutor.submit(() -> visitShard(current, since, action)));
+        }
+
+        long visited = 0;
+        try {
+            for (Future<Long> shard : shards) {
+                visited += shard.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error iterating active devices", e.getCause());
+        } finally {
+            shards.forEach(shard -> shard.cancel(true));
+        }
+        return visited;
+    }
+
+    private long visitShard(int shard, double since, Consumer<String> action) {
+        Position position = new Position(shard, since, 0);
+        // A device that reports during the walk moves ahead in the set and would be read again
+        Set<String> seen = new HashSet<>();
+
+        while (!Thread.currentThread().isInterrupted()) {
+            Set<TypedTuple<String>> entries = readChunk(position);
+            for (TypedTuple<String> entry : entries) {
+                position.advance(entry.getScore());
+                if (!seen.add(entry.getValue())) {
+                    continue;
+                }
+                try {
+                    action.accept(entry.getValue());
+                } catch (RuntimeException e) {
+                    log.error("Error processing device {}", entry.getValue(), e);
+                }
+            }
+            if (entries.size() < SCAN_CHUNK_SIZE) {
+                break;
+            }
+        }
+        return seen.size();
+    }
+
+    @Scheduled(fixedDelay = 60 * 60 * 1000, initialDelay = 60 * 1000)
+    public void pruneInactive() {
+        double before = toMillis(LocalDateTime.now(ZoneOffset.UTC).minusDays(REGISTRY_RETENTION_DAYS));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int shard = 0; shard < SHARD_COUNT; shard++) {
+                connection.zSetCommands().zRemRangeByScore(raw(getActiveKey(shard)), Double.NEGATIVE_INFINITY, before);
+            }
+            return null;
+        });
+    }
+
+    private Set<TypedTuple<String>> readChunk(Position position) {
+        Set<TypedTuple<String>> entries = stringRedisTemplate.opsForZSet().rangeByScoreWithScores(
+                getActiveKey(position.shard), position.score, Double.POSITIVE_INFINITY, position.skip, SCAN_CHUNK_SIZE);
+        return entries != null ? entries : Collections.emptySet();
+    }
+
+    private List<DeviceInfo> loadDevices(List<String> deviceIds, List<Double> lastSeen) {
+        if (deviceIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        List<Object> firstSeen = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String deviceId : deviceIds) {
+                connection.hashCommands().hGet(raw(getDeviceKey(deviceId)), raw("firstSeen"));
+            }
+            return null;
+        });
+
+        List<DeviceInfo> devices = new ArrayList<>(deviceIds.size());
+        for (int i = 0; i < deviceIds.size(); i++) {
+            DeviceInfo device = toDeviceInfo(deviceIds.get(i), (String) firstSeen.get(i), null);
+            device.setLastSeen(fromMillis(lastSeen.get(i)));
+            devices.add(device);
+        }
+        return devices;
+    }
+
+    private DeviceInfo toDeviceInfo(String deviceId, String firstSeen, String lastSeen) {
+        DeviceInfo device = new DeviceInfo();
+        device.setDeviceId(deviceId);
+        device.setFleetId(geofenceService.getDeviceFleet(deviceId));
+        device.setFirstSeen(firstSeen != null ? LocalDateTime.parse(firstSeen) : null);
+        device.setLastSeen(lastSeen != null ? LocalDateTime.parse(lastSeen) : null);
+        return device;
+    }
+
+    static int shardOf(String deviceId) {
+        return Math.floorMod(deviceId.hashCode(), SHARD_COUNT);
+    }
+
+    private static String getDeviceKey(String deviceId) {
+        return DEVICE_KEY_PREFIX + deviceId;
+    }
+
+    private static String getActiveKey(int shard) {
+        return ACTIVE_KEY_PREFIX + shard;
+    }
+
+    private static double toMillis(LocalDateTime time) {
+        return time.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    private static LocalDateTime fromMillis(double millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli((long) millis), ZoneOffset.UTC);
+    }
+
+    private static String encodeCursor(Position position) {
+        String cursor = position.shard + ":" + (long) position.score + ":" + position.skip;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Position decodeCursor(String cursor) {
+        try {
+            String[] fields = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":");
+            Position position = new Position(Integer.parseInt(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+            if (position.shard < 0 || position.shard >= SHARD_COUNT || position.skip < 0) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+            return position;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+
+    private static byte[] raw(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Where a walk through the shards stands: the score last read in a shard and how many
+     * entries with that score were already read
+     */
+    private static final class Position {
+        private final int shard;
+        private double score;
+        private long skip;
+
+        private Position(int shard, double score, long skip) {
+            this.shard = shard;
+            this.score = score;
+            this.skip = skip;
+        }
+
+        private void advance(double entryScore) {
+            if (entryScore == score) {
+                skip++;
+            } else {
+                score = entryScore;
+                skip = 1;
+            }
+        }
+    }
+
+    @lombok.Data
+    public static class DevicePage {
+        private List<DeviceInfo> devices;
+        private String nextCursor; // null once every shard has been read
+    }
+}
@@ -0,0 +1,29 @@
+package com.gpstracker.service.rollup;
+
+import lombok.Data;
+
+/**
+ * In-memory totals for one device and bucket, accumulated by the owning ingest
+ * partition and added to the Redis hash on the next write-behind flush
+ */
+@Data
+public class RollupBucket {
+    private final RollupResolution resolution;
+    private final long bucket;
+
+    private double distance; // km
+    private long points;
+    private long alerts;
+    private double maxSpeed;
+    private double speedSum; // avg speed is speedSum / points
+    private double idleSeconds;
+
+    public void add(double distance, double speed, boolean alert, double idleSeconds) {
+        this.distance += distance;
+        this.points++;
+        this.alerts += alert ? 1 : 0;
+        this.maxSpeed = Math.max(this.maxSpeed, speed);
+        this.speedSum += speed;
+        this.idleSeconds += idleSeconds;
+    }
+}
@@ -0,0 +1,56 @@
+package com.gpstracker.service.rollup;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Bucket sizes of the statistics rollups. Buckets are numbered from the epoch so a
+ * reading's bucket is one division; the readable key label is only built on flush and read.
+ */
+public enum RollupResolution {
+    MINUTE(60, "yyyyMMddHHmm", Duration.ofDays(2)),
+    HOUR(3600, "yyyyMMddHH", Duration.ofDays(31)),
+    DAY(86400, "yyyyMMdd", Duration.ofDays(400));
+
+    private static final String KEY_PREFIX = "gps:rollup:";
+
+    private final long bucketSeconds;
+    private final DateTimeFormatter labelFormat;
+    private final Duration retention;
+
+    RollupResolution(long bucketSeconds, String labelPattern, Duration retention) {
+        this.bucketSeconds = bucketSeconds;
+        this.labelFormat = DateTimeFormatter.ofPattern(labelPattern);
+        this.retention = retention;
+    }
+
+    public long bucketOf(LocalDateTime timestamp) {
+        return Math.floorDiv(timestamp.toEpochSecond(ZoneOffset.UTC), bucketSeconds);
+    }
+
+    public LocalDateTime startOf(long bucket) {
+        return LocalDateTime.ofEpochSecond(bucket * bucketSeconds, 0, ZoneOffset.UTC);
+    }
+
+    /**
+     * gps:rollup:<resolution>:<deviceId>:<bucket start>, e.g. gps:rollup:hour:dev-1:2024031514
+     */
+    public String key(String deviceId, long bucket) {
+        return KEY_PREFIX + name().toLowerCase(Locale.ROOT) + ":" + deviceId + ":" + labelFormat.format(startOf(bucket));
+    }
+
+    public Duration getRetention() {
+        return retention;
+    }
+
+    public static RollupResolution parse(String value) {
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown resolution: " + value + " (expected minute, hour or day)");
+        }
+    }
+}
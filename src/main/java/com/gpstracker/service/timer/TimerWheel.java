@@ -0,0 +1,140 @@
+package com.gpstracker.service.timer;
+
+import java.util.function.Consumer;
+
+/**
+ * Hashed timer wheel for large numbers of deadlines that are pushed back far more often
+ * than they fire, such as "no reading for five minutes".
+ *
+ * Resetting a timer only writes its new deadline; the timer stays in its slot and is
+ * moved when that slot comes round, so each live timer costs at most one move per
+ * wheel rotation and nothing ever scans all timers. Not thread-safe: a wheel and its
+ * timers belong to the one thread that resets them and calls advance.
+ */
+public final class TimerWheel<T> {
+
+    private final long tickMillis;
+    private final Timer<T>[] slots;
+    private long currentTick;
+    private int size;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(long tickMillis, int slotCount, long now) {
+        this.tickMillis = tickMillis;
+        this.slots = new Timer[slotCount];
+        this.currentTick = now / tickMillis;
+    }
+
+    public Timer<T> newTimer(T payload) {
+        return new Timer<>(this, payload);
+    }
+
+    /**
+     * Fires every timer whose deadline is at or before now, in slot order
+     */
+    public void advance(long now, Consumer<T> onExpired) {
+        long targetTick = now / tickMillis;
+        // After a long stall one full rotation visits every slot
+        long fromTick = Math.max(currentTick + 1, targetTick - slots.length + 1);
+
+        for (long tick = fromTick; tick <= targetTick; tick++) {
+            currentTick = tick;
+            int index = slotIndex(tick);
+            Timer<T> timer = slots[index];
+            slots[index] = null;
+
+            while (timer != null) {
+                Timer<T> next = timer.next;
+                timer.prev = null;
+                timer.next = null;
+                timer.slot = -1;
+                size--;
+
+                if (timer.deadline <= now) {
+                    onExpired.accept(timer.payload);
+                } else {
+                    // Pushed back since it was linked here, or due in a later rotation
+                    link(timer);
+                }
+                timer = next;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void link(Timer<T> timer) {
+        // Never behind the cursor, or the timer would wait a whole rotation
+        long tick = Math.max(timer.deadline / tickMillis, currentTick + 1);
+        int index = slotIndex(tick);
+        timer.slot = index;
+        timer.prev = null;
+        timer.next = slots[index];
+        if (slots[index] != null) {
+            slots[index].prev = timer;
+        }
+        slots[index] = timer;
+        size++;
+    }
+
+    private void unlink(Timer<T> timer) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.slot = -1;
+        size--;
+    }
+
+    private int slotIndex(long tick) {
+        return (int) Math.floorMod(tick, (long) slots.length);
+    }
+
+    public static final class Timer<T> {
+        private final TimerWheel<T> wheel;
+        private final T payload;
+        private long deadline;
+        private int slot = -1;
+        private Timer<T> prev;
+        private Timer<T> next;
+
+        private Timer(TimerWheel<T> wheel, T payload) {
+            this.wheel = wheel;
+            this.payload = payload;
+        }
+
+        /**
+         * Arms the timer, or moves its deadline if it is already armed
+         */
+        public void reset(long deadline) {
+            boolean linked = slot >= 0;
+            boolean earlier = deadline < this.deadline;
+            this.deadline = deadline;
+            if (!linked) {
+                wheel.link(this);
+            } else if (earlier) {
+                // A later deadline is picked up lazily; an earlier one must move now
+                wheel.unlink(this);
+                wheel.link(this);
+            }
+        }
+
+        public void cancel() {
+            if (slot >= 0) {
+                wheel.unlink(this);
+            }
+        }
+
+        public boolean isArmed() {
+            return slot >= 0;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.gpstracker.service.track;
+
+import com.gpstracker.model.GpsData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reduces a track to fewer readings before it is sent to a map. Points are projected
+ * once onto a local plane in metres and both reductions work on those primitive arrays,
+ * returning the indices of the readings to keep; the first and last reading always stay.
+ */
+public final class TrackSimplifier {
+
+    private static final double METRES_PER_DEGREE = 111_320.0;
+
+    private TrackSimplifier() {
+    }
+
+    /**
+     * Drops readings that lie within toleranceMetres of the simplified line (0 to skip),
+     * then keeps at most maxPoints of what is left (0 for no cap)
+     */
+    public static List<GpsData> simplify(List<GpsData> track, double toleranceMetres, int maxPoints) {
+        if (toleranceMetres < 0) {
+            throw new IllegalArgumentException("simplify must not be negative");
+        }
+        if (maxPoints != 0 && maxPoints < 2) {
+            throw new IllegalArgumentException("maxPoints must be at least 2");
+        }
+
+        int n = track.size();
+        double[] x = new double[n];
+        double[] y = new double[n];
+        double cosLat = n > 0 ? Math.cos(Math.toRadians(track.get(0).getLatitude())) : 1;
+        for (int i = 0; i < n; i++) {
+            GpsData gpsData = track.get(i);
+            x[i] = gpsData.getLongitude() * METRES_PER_DEGREE * cosLat;
+            y[i] = gpsData.getLatitude() * METRES_PER_DEGREE;
+        }
+
+        int[] kept = toleranceMetres > 0 ? douglasPeucker(x, y, toleranceMetres) : identity(n);
+        if (maxPoints > 0 && kept.length > maxPoints) {
+            int[] reduced = largestTriangleThreeBuckets(select(x, kept), select(y, kept), maxPoints);
+            for (int i = 0; i < reduced.length; i++) {
+                reduced[i] = kept[reduced[i]];
+            }
+            kept = reduced;
+        }
+        if (kept.length == n) {
+            return track;
+        }
+
+        List<GpsData> simplified = new ArrayList<>(kept.length);
+        for (int index : kept) {
+            simplified.add(track.get(index));
+        }
+        return simplified;
+    }
+
+    /**
+     * Douglas-Peucker with an explicit stack, so long tracks cannot overflow the call stack
+     */
+    static int[] douglasPeucker(double[] x, double[] y, double tolerance) {
+        int n = x.length;
+        if (n < 3) {
+            return identity(n);
+        }
+
+        boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[n - 1] = true;
+        int keptCount = 2;
+        double toleranceSquared = tolerance * tolerance;
+
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = n - 1;
+
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+
+            int farthest = -1;
+            double maxDistance = toleranceSquared;
+            for (int i = first + 1; i < last; i++) {
+                double distance = segmentDistanceSquared(x[i], y[i], x[first], y[first], x[last], y[last]);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    farthest = i;
+                }
+            }
+
+            if (farthest >= 0) {
+                keep[farthest] = true;
+                keptCount++;
+                if (top + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                if (farthest - first > 1) {
+                    stack[top++] = first;
+                    stack[top++] = farthest;
+                }
+                if (last - farthest > 1) {
+                    stack[top++] = farthest;
+                    stack[top++] = last;
+                }
+            }
+        }
+
+        int[] kept = new int[keptCount];
+        for (int i = 0, k = 0; i < n; i++) {
+            if (keep[i]) {
+                kept[k++] = i;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Largest-Triangle-Three-Buckets: splits the points between the first and last into
+     * threshold - 2 buckets by position along the track and keeps from each the point
+     * forming the largest triangle with the previous pick and the next bucket's average
+     */
+    static int[] largestTriangleThreeBuckets(double[] x, double[] y, int threshold) {
+        int n = x.length;
+        if (threshold >= n) {
+            return identity(n);
+        }
+        if (threshold == 2) {
+            return new int[] { 0, n - 1 };
+        }
+
+        int[] kept = new int[threshold];
+        double bucketSize = (double) (n - 2) / (threshold - 2);
+        int previous = 0;
+        kept[0] = 0;
+
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            int nextStart = (int) ((bucket + 1) * bucketSize) + 1;
+            int nextEnd = Math.min((int) ((bucket + 2) * bucketSize) + 1, n);
+            double averageX = 0;
+            double averageY = 0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                averageX += x[i];
+                averageY += y[i];
+            }
+            averageX /= nextEnd - nextStart;
+            averageY /= nextEnd - nextStart;
+
+            int start = (int) (bucket * bucketSize) + 1;
+            int end = nextStart;
+            int chosen = start;
+            double maxArea = -1;
+            for (int i = start; i < end; i++) {
+                // Twice the triangle area; only the comparison matters
+                double area = Math.abs((x[previous] - averageX) * (y[i] - y[previous])
+                        - (x[previous] - x[i]) * (averageY - y[previous]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    chosen = i;
+                }
+            }
+
+            kept[bucket + 1] = chosen;
+            previous = chosen;
+        }
+
+        kept[threshold - 1] = n - 1;
+        return kept;
+    }
+
+    private static double segmentDistanceSquared(double px, double py, double ax, double ay, double bx, double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared > 0 ? ((px - ax) * dx + (py - ay) * dy) / lengthSquared : 0;
+        t = Math.max(0, Math.min(1, t));
+        double ex = px - (ax + t * dx);
+        double ey = py - (ay + t * dy);
+        return ex * ex + ey * ey;
+    }
+
+    private static double[] select(double[] values, int[] indices) {
+        double[] selected = new double[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            selected[i] = values[indices[i]];
+        }
+        return selected;
+    }
+
+    private static int[] identity(int n) {
+        int[] indices = new int[n];
+        for (int i = 0; i < n; i++) {
+            indices[i] = i;
+        }
+        return indices;
+    }
+}
@@ -0,0 +1,257 @@
+package com.gpstracker.websocket;
+
+import com.gpstracker.model.GpsData;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes the binary frames of the compact live channel for one session. It remembers
+ * the last values sent per device, so a delta frame carries only what changed since.
+ *
+ * <pre>
+ * frame  u8 type (0x01 KEYFRAME, 0x02 DELTA), varint seq, varint baseTime (epoch s),
+ *        varint count, count entries
+ * entry  varint slot, u8 flags, then for each flag set, in this order:
+ *        0x01 NEW_DEVICE  varint length, UTF-8 device id
+ *        0x02 POSITION    zigzag lat, zigzag lon in 1e-5 degrees
+ *        0x04 HEADING     varint whole degrees 0-359
+ *        0x08 SPEED       varint 0.1 km/h
+ *        0x10 STATUS      u8 0 unknown, 1 ACTIVE, 2 IDLE, 3 OFFLINE
+ *        0x20 TIME        zigzag seconds relative to baseTime
+ * </pre>
+ *
+ * A slot is the session's number for a device, given with its id the first time it is
+ * sent. In a DELTA frame, positions are differences from the slot's previous position and
+ * the other fields are only present when they changed. A KEYFRAME lists every device the
+ * session knows with the id and absolute values; it replaces the client's whole table,
+ * so devices not in it are gone. Devices not updated for idleEvictMs are left out.
+ */
+final class CompactFrameEncoder {
+
+    static final byte KEYFRAME = 0x01;
+    static final byte DELTA = 0x02;
+
+    static final int NEW_DEVICE = 0x01;
+    static final int POSITION = 0x02;
+    static final int HEADING = 0x04;
+    static final int SPEED = 0x08;
+    static final int STATUS = 0x10;
+    static final int TIME = 0x20;
+    private static final int ALL_FIELDS = POSITION | HEADING | SPEED | STATUS | TIME;
+
+    private static final double COORDINATE_SCALE = 1e5;
+
+    private final long keyframeIntervalMs;
+    private final long idleEvictMs;
+    private final Map<String, DeviceSlot> slots = new HashMap<>();
+    private int nextSlot;
+    private long sequence;
+    private long lastKeyframeAt = Long.MIN_VALUE;
+
+    CompactFrameEncoder(long keyframeIntervalMs, long idleEvictMs) {
+        this.keyframeIntervalMs = keyframeIntervalMs;
+        this.idleEvictMs = idleEvictMs;
+    }
+
+    boolean keyframeDue(long now) {
+        return lastKeyframeAt == Long.MIN_VALUE || now - lastKeyframeAt >= keyframeIntervalMs;
+    }
+
+    /**
+     * The next frame for these readings (at most one per device, as conflated), or null
+     * when a delta frame would carry nothing. A due keyframe also carries the devices not
+     * in updates.
+     */
+    byte[] encode(List<GpsData> updates, long now) {
+        long baseTime = now / 1000;
+        if (keyframeDue(now)) {
+            for (GpsData update : updates) {
+                slotFor(update.getDeviceId()).apply(update, now, baseTime);
+            }
+            return keyframe(now, baseTime);
+        }
+
+        FrameWriter entries = new FrameWriter(updates.size() * 12);
+        int count = 0;
+        for (GpsData update : updates) {
+            DeviceSlot slot = slots.get(update.getDeviceId());
+            int flags;
+            if (slot == null) {
+                slot = slotFor(update.getDeviceId());
+                slot.apply(update, now, baseTime);
+                flags = NEW_DEVICE | ALL_FIELDS;
+                writeEntry(entries, slot, flags, 0, 0, baseTime);
+            } else {
+                long previousLat = slot.lat, previousLon = slot.lon;
+                flags = slot.apply(update, now, baseTime);
+                if (flags == 0) {
+                    continue;
+                }
+                writeEntry(entries, slot, flags, previousLat, previousLon, baseTime);
+            }
+            count++;
+        }
+        if (count == 0) {
+            return null;
+        }
+
+        FrameWriter frame = new FrameWriter(entries.size() + 16);
+        frame.writeByte(DELTA);
+        frame.writeVarint(sequence++);
+        frame.writeVarint(baseTime);
+        frame.writeVarint(count);
+        entries.appendTo(frame);
+        return frame.toByteArray();
+    }
+
+    int deviceCount() {
+        return slots.size();
+    }
+
+    private byte[] keyframe(long now, long baseTime) {
+        Iterator<DeviceSlot> it = slots.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().updatedAt > idleEvictMs) {
+                it.remove();
+            }
+        }
+
+        FrameWriter frame = new FrameWriter(16 + slots.size() * 32);
+        frame.writeByte(KEYFRAME);
+        frame.writeVarint(sequence++);
+        frame.writeVarint(baseTime);
+        frame.writeVarint(slots.size());
+        for (DeviceSlot slot : slots.values()) {
+            writeEntry(frame, slot, NEW_DEVICE | ALL_FIELDS, 0, 0, baseTime);
+        }
+        lastKeyframeAt = now;
+        return frame.toByteArray();
+    }
+
+    private DeviceSlot slotFor(String deviceId) {
+        return slots.computeIfAbsent(deviceId, id -> new DeviceSlot(nextSlot++, id));
+    }
+
+    private static void writeEntry(FrameWriter out, DeviceSlot slot, int flags, long fromLat, long fromLon, long baseTime) {
+        out.writeVarint(slot.slot);
+        out.writeByte(flags);
+        if ((flags & NEW_DEVICE) != 0) {
+            out.writeVarint(slot.deviceId.length);
+            out.writeRaw(slot.deviceId);
+        }
+        if ((flags & POSITION) != 0) {
+            out.writeZigzag(slot.lat - fromLat);
+            out.writeZigzag(slot.lon - fromLon);
+        }
+        if ((flags & HEADING) != 0) {
+            out.writeVarint(slot.heading);
+        }
+        if ((flags & SPEED) != 0) {
+            out.writeVarint(slot.speed);
+        }
+        if ((flags & STATUS) != 0) {
+            out.writeByte(slot.status);
+        }
+        if ((flags & TIME) != 0) {
+            out.writeZigzag(slot.time - baseTime);
+        }
+    }
+
+    private static int statusCode(String status) {
+        if (status == null) {
+            return 0;
+        }
+        switch (status) {
+            case "ACTIVE":
+                return 1;
+            case "IDLE":
+                return 2;
+            case "OFFLINE":
+                return 3;
+            default:
+                return 0;
+        }
+    }
+
+    private static final class DeviceSlot {
+        private final int slot;
+        private final byte[] deviceId;
+        private long lat;
+        private long lon;
+        private int heading;
+        private int speed;
+        private int status;
+        private long time;
+        private long updatedAt;
+
+        private DeviceSlot(int slot, String deviceId) {
+            this.slot = slot;
+            this.deviceId = deviceId.getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Stores the quantized reading and returns the flags of the fields that changed
+         */
+        private int apply(GpsData reading, long now, long baseTime) {
+            long newLat = Math.round(reading.getLatitude() * COORDINATE_SCALE);
+            long newLon = Math.round(reading.getLongitude() * COORDINATE_SCALE);
+            int newHeading = (int) Math.floorMod(Math.round(reading.getHeading()), 360L);
+            int newSpeed = (int) Math.max(0, Math.min(Integer.MAX_VALUE, Math.round(reading.getSpeed() * 10)));
+            int newStatus = statusCode(reading.getDeviceStatus());
+            long newTime = reading.getTimestamp() != null
+                    ? reading.getTimestamp().toEpochSecond(ZoneOffset.UTC)
+                    : baseTime;
+
+            int flags = (newLat != lat || newLon != lon ? POSITION : 0)
+                    | (newHeading != heading ? HEADING : 0)
+                    | (newSpeed != speed ? SPEED : 0)
+                    | (newStatus != status ? STATUS : 0)
+                    | (newTime != time ? TIME : 0);
+            lat = newLat;
+            lon = newLon;
+            heading = newHeading;
+            speed = newSpeed;
+            status = newStatus;
+            time = newTime;
+            updatedAt = now;
+            return flags;
+        }
+    }
+
+    private static final class FrameWriter extends ByteArrayOutputStream {
+
+        private FrameWriter(int size) {
+            super(size);
+        }
+
+        private void writeByte(int value) {
+            write(value);
+        }
+
+        private void writeRaw(byte[] bytes) {
+            write(bytes, 0, bytes.length);
+        }
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        private void writeZigzag(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        private void appendTo(FrameWriter target) {
+            target.write(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.gpstracker.websocket;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gpstracker.model.GpsData;
+import com.gpstracker.websocket.LiveSubscriptionRegistry.Viewport;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.Session;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The compact live channel at /live/compact, for dashboards following many devices.
+ *
+ * The client sends the same subscriptions as on STOMP as JSON text messages,
+ * {"subscribe":[ids]}, {"unsubscribe":[ids]} and {"viewport":{...}} ({"viewport":null}
+ * clears it), and receives binary CompactFrameEncoder frames: every flush of
+ * LiveUpdateConflater becomes one frame with only id, position, heading, speed, status and
+ * time, quantized and delta-encoded, and a keyframe every keyframe-interval-ms.
+ *
+ * Frames are written with the container's asynchronous send, one at a time and in order per
+ * session, so a client that stops reading holds no thread; a write still unfinished after
+ * gps.ws.send-time-limit-ms fails and the session is closed. A delta frame is only
+ * meaningful after the ones before it, so frames are never dropped: while more than
+ * max-queued-frames are waiting the conflater stops encoding for the session and keeps
+ * only the latest reading per device, as for a slow STOMP session.
+ */
+@Slf4j
+@Component
+public class CompactLiveHandler extends AbstractWebSocketHandler {
+
+    @Value("${gps.live.compact.keyframe-interval-ms:10000}")
+    private long keyframeIntervalMs;
+
+    @Value("${gps.live.compact.idle-evict-ms:300000}")
+    private long idleEvictMs;
+
+    @Value("${gps.live.compact.max-queued-frames:4}")
+    private int maxQueuedFrames;
+
+    @Value("${gps.ws.send-time-limit-ms:10000}")
+    private long sendTimeLimitMs;
+
+    @Autowired
+    private LiveSubscriptionRegistry liveSubscriptions;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private final Map<String, CompactSession> sessions = new ConcurrentHashMap<>();
+
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder keyframes = new LongAdder();
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws IOException {
+        Session nativeSession = session instanceof NativeWebSocketSession
+                ? ((NativeWebSocketSession) session).getNativeSession(Session.class)
+                : null;
+        if (nativeSession == null) {
+            log.warn("Compact live session {} is not a JSR-356 session; closing it", session.getId());
+            session.close(CloseStatus.SERVER_ERROR);
+            return;
+        }
+        RemoteEndpoint.Async remote = nativeSession.getAsyncRemote();
+        remote.setSendTimeout(sendTimeLimitMs);
+        sessions.put(session.getId(), new CompactSession(session, remote));
+        log.debug("Compact live session {} opened", session.getId());
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+        CompactSession compact = sessions.get(session.getId());
+        if (compact == null) {
+            return;
+        }
+        try {
+            JsonNode request = objectMapper.readTree(message.getPayload());
+            if (request == null || !request.isObject()) {
+                throw new IllegalArgumentException("Expected a JSON object");
+            }
+            if (request.has("subscribe")) {
+                liveSubscriptions.subscribeDevices(session.getId(), null, deviceIds(request.get("subscribe")));
+            }
+            if (request.has("unsubscribe")) {
+                liveSubscriptions.unsubscribeDevices(session.getId(), deviceIds(request.get("unsubscribe")));
+            }
+            if (request.has("viewport")) {
+                JsonNode viewport = request.get("viewport");
+                liveSubscriptions.setViewport(session.getId(), null,
+                        viewport.isNull() ? null : objectMapper.treeToValue(viewport, Viewport.class));
+            }
+        } catch (JsonProcessingException | IllegalArgumentException e) {
+            log.warn("Rejected request from compact live session {}: {}", session.getId(), e.getMessage());
+            compact.sendError(e.getMessage());
+        }
+    }
+
+    @Override
+    public void handleTransportError(WebSocketSession session, Throwable exception) {
+        log.debug("Transport error on compact live session {}: {}", session.getId(), exception.getMessage());
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        CompactSession compact = sessions.remove(session.getId());
+        if (compact != null) {
+            compact.pending.clear();
+        }
+        liveSubscriptions.removeSession(session.getId());
+        log.debug("Compact live session {} closed: {}", session.getId(), status);
+    }
+
+    /**
+     * The compact session with this id, or null for STOMP sessions
+     */
+    CompactSession session(String sessionId) {
+        return sessions.isEmpty() ? null : sessions.get(sessionId);
+    }
+
+    public Map<String, Object> snapshot() {
+        long updateCount = updates.sum();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("sessions", sessions.size());
+        metrics.put("frames", frames.sum());
+        metrics.put("keyframes", keyframes.sum());
+        metrics.put("updates", updateCount);
+        metrics.put("bytes", bytes.sum());
+        metrics.put("bytesPerUpdate", updateCount == 0 ? 0.0 : (double) bytes.sum() / updateCount);
+        return metrics;
+    }
+
+    private List<String> deviceIds(JsonNode node) {
+        List<String> deviceIds = objectMapper.convertValue(node, new TypeReference<List<String>>() {});
+        LiveSubscriptionRegistry.validateDeviceIds(deviceIds);
+        return deviceIds;
+    }
+
+    /**
+     * One client of the compact channel. The encoder is only used by the conflater's flush
+     * thread. Frames and control replies queue here; whoever sets the sending flag starts a
+     * write, and each completed write starts the next one. A close waits for the write in
+     * progress, because the container would otherwise block the closing thread until it ends.
+     */
+    final class CompactSession {
+        private final WebSocketSession socket;
+        private final RemoteEndpoint.Async remote;
+        private final CompactFrameEncoder encoder = new CompactFrameEncoder(keyframeIntervalMs, idleEvictMs);
+        private final Queue<Object> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private volatile CloseStatus closeStatus;
+
+        private CompactSession(WebSocketSession socket, RemoteEndpoint.Async remote) {
+            this.socket = socket;
+            this.remote = remote;
+        }
+
+        boolean keyframeDue(long now) {
+            return encoder.keyframeDue(now);
+        }
+
+        boolean isBehind() {
+            return queued.get() > maxQueuedFrames;
+        }
+
+        int depth() {
+            return queued.get();
+        }
+
+        void send(List<GpsData> readings, long now) {
+            boolean keyframe = encoder.keyframeDue(now);
+            byte[] frame = encoder.encode(readings, now);
+            if (frame == null) {
+                return;
+            }
+            frames.increment();
+            if (keyframe) {
+                keyframes.increment();
+            }
+            updates.add(readings.size());
+            bytes.add(frame.length);
+
+            enqueue(frame);
+        }
+
+        void close(CloseStatus status) {
+            closeStatus = status;
+            if (sending.compareAndSet(false, true)) {
+                closeNow();
+            }
+        }
+
+        private void sendError(String message) {
+            try {
+                enqueue(objectMapper.writeValueAsString(Map.of("type", "error", "message", String.valueOf(message))));
+            } catch (JsonProcessingException e) {
+                log.debug("Cannot send error to compact live session {}: {}", socket.getId(), e.getMessage());
+            }
+        }
+
+        private void enqueue(Object message) {
+            pending.add(message);
+            queued.incrementAndGet();
+            if (sending.compareAndSet(false, true)) {
+                sendNext();
+            }
+        }
+
+        /**
+         * Starts the next write; only called by the holder of the sending flag
+         */
+        private void sendNext() {
+            while (true) {
+                if (closeStatus != null) {
+                    closeNow();
+                    return;
+                }
+                Object message = pending.poll();
+                if (message != null) {
+                    write(message);
+                    return;
+                }
+                sending.set(false);
+                // Queued or closed after the poll but before the flag was released
+                if ((pending.isEmpty() && closeStatus == null) || !sending.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        private void write(Object message) {
+            SendHandler onWritten = result -> {
+                queued.decrementAndGet();
+                if (result.isOK()) {
+                    sendNext();
+                } else {
+                    // Frames after a lost one would not decode; the client reconnects and starts from a keyframe
+                    log.debug("Closing compact live session {}: {}", socket.getId(), String.valueOf(result.getException()));
+                    closeStatus = CloseStatus.SESSION_NOT_RELIABLE;
+                    closeNow();
+                }
+            };
+            try {
+                if (message instanceof byte[]) {
+                    remote.sendBinary(ByteBuffer.wrap((byte[]) message), onWritten);
+                } else {
+                    remote.sendText((String) message, onWritten);
+                }
+            } catch (RuntimeException e) {
+                queued.decrementAndGet();
+                log.debug("Closing compact live session {}: {}", socket.getId(), e.getMessage());
+                closeStatus = CloseStatus.SERVER_ERROR;
+                closeNow();
+            }
+        }
+
+        private void closeNow() {
+            pending.clear();
+            queued.set(0);
+            try {
+                socket.close(closeStatus);
+            } catch (IOException e) {
+                log.debug("Error closing compact live session {}: {}", socket.getId(), e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.gpstracker.websocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gpstracker.service.timer.TimerWheel;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lifecycle of the device WebSocket sessions behind GpsWebSocketHandler: the session and
+ * deviceId indexes, deadlines, and sending.
+ *
+ * A session must register within register-timeout-ms and then send something (a reading,
+ * a heartbeat or a pong) at least every idle-timeout-ms, or it is closed. Trackers that
+ * lose signal leave half-open connections that never report an error, and this is what
+ * gets rid of them. Deadlines live in a TimerWheel owned by the "gps-device-sessions"
+ * thread. Inbound traffic only writes the session's last activity time, and a timer that
+ * fires early is pushed back to the deadline that time gives, so the hot path never
+ * touches the wheel.
+ *
+ * Sockets are wrapped in a ConcurrentWebSocketSessionDecorator. Acks, the ack flusher and
+ * pushed commands can send at the same time without blocking each other, and a device
+ * that stops reading is closed once its buffer passes send-buffer-size-limit or a send
+ * has waited longer than send-time-limit-ms.
+ */
+@Slf4j
+@Component
+public class DeviceSessionManager {
+
+    private static final long TICK_MS = 1000;
+    private static final int WHEEL_SLOTS = 1024; // one rotation is longer than the timeouts
+    private static final int MAX_COMMAND_LENGTH = 16 * 1024;
+
+    @Value("${gps.ws.device.register-timeout-ms:10000}")
+    private long registerTimeoutMs;
+
+    @Value("${gps.ws.device.idle-timeout-ms:90000}")
+    private long idleTimeoutMs;
+
+    @Value("${gps.ws.device.send-time-limit-ms:10000}")
+    private int sendTimeLimitMs;
+
+    @Value("${gps.ws.device.send-buffer-size-limit:65536}")
+    private int sendBufferSizeLimit;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private final Map<String, DeviceSession> sessions = new ConcurrentHashMap<>();
+    private final Map<String, DeviceSession> deviceSessions = new ConcurrentHashMap<>();
+
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder reaped = new LongAdder();
+    private final LongAdder superseded = new LongAdder();
+    private final LongAdder commandsSent = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+
+    private ScheduledExecutorService owner;
+    private ExecutorService closer;
+    private TimerWheel<DeviceSession> wheel;
+
+    @PostConstruct
+    public void start() {
+        wheel = new TimerWheel<>(TICK_MS, WHEEL_SLOTS, System.currentTimeMillis());
+        owner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gps-device-sessions");
+            thread.setDaemon(true);
+            return thread;
+        });
+        owner.scheduleWithFixedDelay(this::advance, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+
+        // Closing a half-open socket can block on the close frame, so it stays off the wheel thread
+        AtomicInteger threadCount = new AtomicInteger();
+        closer = Executors.newFixedThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "gps-device-closer-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        owner.shutdownNow();
+        closer.shutdownNow();
+    }
+
+    public DeviceSession open(WebSocketSession session) {
+        DeviceSession deviceSession = new DeviceSession(session.getId(),
+                new ConcurrentWebSocketSessionDecorator(session, sendTimeLimitMs, sendBufferSizeLimit));
+        sessions.put(session.getId(), deviceSession);
+        opened.increment();
+        owner.execute(() -> {
+            deviceSession.timer = wheel.newTimer(deviceSession);
+            deviceSession.timer.reset(deviceSession.openedAt + registerTimeoutMs);
+        });
+        return deviceSession;
+    }
+
+    public DeviceSession get(String sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    /**
+     * The open session of a device, if it is connected to this node
+     */
+    public DeviceSession forDevice(String deviceId) {
+        return deviceSessions.get(deviceId);
+    }
+
+    /**
+     * Binds the session to its device. A session the device still had open, typically a
+     * half-open one it reconnected around, is closed. A session reaped meanwhile is not
+     * registered: remove sets closed before reading the device id, so either it takes out
+     * the entry made here or the check after the put sees it closed.
+     */
+    public void register(DeviceSession deviceSession, String deviceId) {
+        if (deviceSession.closed) {
+            return;
+        }
+        deviceSession.deviceId = deviceId;
+        deviceSession.touch();
+        DeviceSession previous = deviceSessions.put(deviceId, deviceSession);
+        if (deviceSession.closed) {
+            // Put back the session this one displaced rather than leave the device without one
+            if (previous != null && previous != deviceSession && !previous.closed) {
+                if (deviceSessions.replace(deviceId, deviceSession, previous) && previous.closed) {
+                    deviceSessions.remove(deviceId, previous);
+                }
+            } else {
+                deviceSessions.remove(deviceId, deviceSession);
+            }
+            return;
+        }
+        if (previous != null && previous != deviceSession) {
+            superseded.increment();
+            log.info("Device {} reconnected as session {}, closing session {}", deviceId,
+                    deviceSession.sessionId, previous.sessionId);
+            remove(previous);
+            closeAsync(previous, CloseStatus.POLICY_VIOLATION.withReason("Superseded by a newer session"));
+        }
+    }
+
+    public void closed(String sessionId) {
+        DeviceSession deviceSession = sessions.get(sessionId);
+        if (deviceSession != null) {
+            remove(deviceSession);
+        }
+    }
+
+    /**
+     * Sends a command to the device's session on this node and returns the command id,
+     * or null if the device is not connected here
+     */
+    public String pushCommand(String deviceId, Map<String, Object> command) throws IOException {
+        if (command == null || command.isEmpty()) {
+            throw new IllegalArgumentException("Command must be a non-empty JSON object");
+        }
+        DeviceSession deviceSession = deviceSessions.get(deviceId);
+        if (deviceSession == null) {
+            return null;
+        }
+
+        String commandId = UUID.randomUUID().toString();
+        Map<String, Object> frame = new LinkedHashMap<>();
+        frame.put("type", "command");
+        frame.put("commandId", commandId);
+        frame.put("command", command);
+        String json = objectMapper.writeValueAsString(frame);
+        if (json.length() > MAX_COMMAND_LENGTH) {
+            throw new IllegalArgumentException("Command exceeds " + MAX_COMMAND_LENGTH + " characters");
+        }
+        if (!deviceSession.send(new TextMessage(json))) {
+            throw new IOException("Device " + deviceId + " session is not writable");
+        }
+        commandsSent.increment();
+        return commandId;
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("sessions", sessions.size());
+        metrics.put("devices", deviceSessions.size());
+        metrics.put("opened", opened.sum());
+        metrics.put("reaped", reaped.sum());
+        metrics.put("superseded", superseded.sum());
+        metrics.put("commandsSent", commandsSent.sum());
+        metrics.put("sendFailures", sendFailures.sum());
+        metrics.put("registerTimeoutMs", registerTimeoutMs);
+        metrics.put("idleTimeoutMs", idleTimeoutMs);
+        return metrics;
+    }
+
+    long heartbeatIntervalMs() {
+        // Three heartbeats per deadline, so one lost heartbeat does not close the session
+        return idleTimeoutMs / 3;
+    }
+
+    private void remove(DeviceSession deviceSession) {
+        if (deviceSession.closed) {
+            return;
+        }
+        deviceSession.closed = true;
+        sessions.remove(deviceSession.sessionId, deviceSession);
+        if (deviceSession.deviceId != null) {
+            deviceSessions.remove(deviceSession.deviceId, deviceSession);
+        }
+        owner.execute(() -> {
+            if (deviceSession.timer != null) {
+                deviceSession.timer.cancel();
+            }
+        });
+    }
+
+    private void advance() {
+        try {
+            long now = System.currentTimeMillis();
+            wheel.advance(now, deviceSession -> expire(deviceSession, now));
+        } catch (RuntimeException e) {
+            log.error("Error checking device session deadlines: ", e);
+        }
+    }
+
+    private void expire(DeviceSession deviceSession, long now) {
+        if (deviceSession.closed) {
+            return;
+        }
+        long deadline = deviceSession.deviceId == null
+                ? deviceSession.openedAt + registerTimeoutMs
+                : deviceSession.lastActivity + idleTimeoutMs;
+        if (deadline > now) {
+            deviceSession.timer.reset(deadline);
+            return;
+        }
+
+        reaped.increment();
+        String reason;
+        if (deviceSession.deviceId == null) {
+            reason = "Not registered";
+            log.info("Closing session {}: not registered within {} ms", deviceSession.sessionId, registerTimeoutMs);
+        } else {
+            reason = "No heartbeat";
+            log.info("Closing session {} of device {}: silent for {} ms", deviceSession.sessionId,
+                    deviceSession.deviceId, now - deviceSession.lastActivity);
+        }
+        remove(deviceSession);
+        closeAsync(deviceSession, CloseStatus.POLICY_VIOLATION.withReason(reason));
+    }
+
+    private void closeAsync(DeviceSession deviceSession, CloseStatus status) {
+        closer.execute(() -> {
+            try {
+                deviceSession.socket.close(status);
+            } catch (IOException | RuntimeException e) {
+                log.debug("Error closing session {}: {}", deviceSession.sessionId, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * One device connection. The timer is only touched by the wheel thread.
+     */
+    public final class DeviceSession {
+        private final String sessionId;
+        private final WebSocketSession socket;
+        private final long openedAt = System.currentTimeMillis();
+        private volatile String deviceId;
+        private volatile long lastActivity = openedAt;
+        private volatile boolean closed;
+        private TimerWheel.Timer<DeviceSession> timer;
+
+        private DeviceSession(String sessionId, WebSocketSession socket) {
+            this.sessionId = sessionId;
+            this.socket = socket;
+        }
+
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        public String getDeviceId() {
+            return deviceId;
+        }
+
+        public void touch() {
+            lastActivity = System.currentTimeMillis();
+        }
+
+        /**
+         * Sends or buffers the message; false if the session is closed or over its limits
+         */
+        public boolean send(TextMessage message) {
+            if (closed || !socket.isOpen()) {
+                return false;
+            }
+            try {
+                socket.sendMessage(message);
+                return true;
+            } catch (IOException | RuntimeException e) {
+                // Over the buffer or time limit the decorator has already closed the session
+                sendFailures.increment();
+                log.warn("Error sending to session {} of device {}: {}", sessionId, deviceId, e.getMessage());
+                return false;
+            }
+        }
+    }
+}
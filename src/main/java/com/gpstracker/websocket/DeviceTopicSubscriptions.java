@@ -0,0 +1,115 @@
+package com.gpstracker.websocket;
+
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+import org.springframework.web.socket.messaging.SessionUnsubscribeEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counts this node's STOMP subscriptions to /topic/device/{deviceId} and /topic/updates, so
+ * readings nobody here follows can be dropped before a message is built for them. The
+ * broker's own registry answers the same question only by matching a destination against
+ * every subscription once its cache is exceeded, which is every reading with many devices.
+ * A pattern subscription such as /topic/device/** counts as following every device.
+ */
+@Component
+public class DeviceTopicSubscriptions {
+
+    static final String DEVICE_TOPIC_PREFIX = "/topic/device/";
+    static final String FIREHOSE_TOPIC = "/topic/updates";
+    private static final String TOPIC_PREFIX = "/topic/";
+    private static final String ANY_DEVICE = "*";
+
+    private final Map<String, Map<String, String>> sessions = new ConcurrentHashMap<>();
+    private final Map<String, Integer> subscriberCounts = new ConcurrentHashMap<>();
+
+    @EventListener
+    public void onSubscribe(SessionSubscribeEvent event) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(event.getMessage());
+        String key = counterKey(accessor.getDestination());
+        String sessionId = accessor.getSessionId();
+        if (sessionId == null || accessor.getSubscriptionId() == null || key == null) {
+            return;
+        }
+        Map<String, String> subscriptions = sessions.computeIfAbsent(sessionId, id -> new HashMap<>());
+        synchronized (subscriptions) {
+            if (sessions.get(sessionId) != subscriptions) {
+                // Disconnected meanwhile; its counts are already released
+                return;
+            }
+            String previous = subscriptions.put(accessor.getSubscriptionId(), key);
+            if (previous != null) {
+                decrement(previous);
+            }
+            increment(key);
+        }
+    }
+
+    @EventListener
+    public void onUnsubscribe(SessionUnsubscribeEvent event) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(event.getMessage());
+        Map<String, String> subscriptions = accessor.getSessionId() != null ? sessions.get(accessor.getSessionId()) : null;
+        if (subscriptions == null) {
+            return;
+        }
+        synchronized (subscriptions) {
+            String key = subscriptions.remove(accessor.getSubscriptionId());
+            if (key != null) {
+                decrement(key);
+            }
+        }
+    }
+
+    @EventListener
+    public void onDisconnect(SessionDisconnectEvent event) {
+        Map<String, String> subscriptions = sessions.remove(event.getSessionId());
+        if (subscriptions == null) {
+            return;
+        }
+        synchronized (subscriptions) {
+            for (String key : subscriptions.values()) {
+                decrement(key);
+            }
+            subscriptions.clear();
+        }
+    }
+
+    public boolean hasDeviceSubscribers(String deviceId) {
+        return subscriberCounts.containsKey(DEVICE_TOPIC_PREFIX + deviceId) || subscriberCounts.containsKey(ANY_DEVICE);
+    }
+
+    public boolean hasFirehoseSubscribers() {
+        return subscriberCounts.containsKey(FIREHOSE_TOPIC) || subscriberCounts.containsKey(ANY_DEVICE);
+    }
+
+    /**
+     * The counter a subscription belongs to, or null when it cannot receive position updates
+     */
+    private static String counterKey(String destination) {
+        if (destination == null || !destination.startsWith(TOPIC_PREFIX)) {
+            return null;
+        }
+        if (destination.indexOf('*') >= 0 || destination.indexOf('?') >= 0 || destination.indexOf('{') >= 0) {
+            return ANY_DEVICE;
+        }
+        if (destination.equals(FIREHOSE_TOPIC)
+                || destination.startsWith(DEVICE_TOPIC_PREFIX) && destination.length() > DEVICE_TOPIC_PREFIX.length()) {
+            return destination;
+        }
+        return null;
+    }
+
+    private void increment(String key) {
+        subscriberCounts.merge(key, 1, Integer::sum);
+    }
+
+    private void decrement(String key) {
+        subscriberCounts.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+    }
+}
@@ -0,0 +1,243 @@
+package com.gpstracker.websocket;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gpstracker.model.GpsData;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+
+/**
+ * Decodes device WebSocket messages straight from the JSON token stream into GpsData,
+ * without an intermediate Map or boxed numbers. A heartbeat is recognised from the
+ * first field and returned before the rest of the message is read.
+ */
+@Component
+public class GpsMessageDecoder {
+
+    private final JsonFactory jsonFactory;
+
+    @Autowired
+    public GpsMessageDecoder(ObjectMapper objectMapper) {
+        this.jsonFactory = objectMapper.getFactory();
+    }
+
+    public DecodedMessage decode(String payload) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Message is not a JSON object");
+            }
+
+            GpsData gpsData = new GpsData();
+            boolean firstField = true;
+            String type = null;
+            long seq = -1;
+            String ackMode = null;
+            int ackEvery = 0;
+            long ackIntervalMs = 0;
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+
+                switch (field) {
+                    case "type":
+                        type = parser.getValueAsString();
+                        if (firstField && "heartbeat".equals(type)) {
+                            return DecodedMessage.HEARTBEAT;
+                        }
+                        break;
+                    case "deviceId":
+                        gpsData.setDeviceId(parser.getValueAsString());
+                        break;
+                    case "latitude":
+                        gpsData.setLatitude(parser.getValueAsDouble());
+                        break;
+                    case "longitude":
+                        gpsData.setLongitude(parser.getValueAsDouble());
+                        break;
+                    case "speed":
+                        gpsData.setSpeed(parser.getValueAsDouble());
+                        break;
+                    case "heading":
+                        gpsData.setHeading(parser.getValueAsDouble());
+                        break;
+                    case "timestamp":
+                        if (value == JsonToken.VALUE_STRING) {
+                            gpsData.setTimestamp(parseTimestamp(
+                                parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength()));
+                        }
+                        break;
+                    case "batteryLevel":
+                        gpsData.setBatteryLevel(parser.getValueAsDouble());
+                        break;
+                    case "accuracy":
+                        gpsData.setAccuracy(parser.getValueAsDouble());
+                        break;
+                    case "altitude":
+                        gpsData.setAltitude(parser.getValueAsDouble());
+                        break;
+                    case "temperature":
+                        gpsData.setTemperature(parser.getValueAsDouble());
+                        break;
+                    case "humidity":
+                        gpsData.setHumidity(parser.getValueAsDouble());
+                        break;
+                    case "networkType":
+                        gpsData.setNetworkType(parser.getValueAsString());
+                        break;
+                    case "signalStrength":
+                        gpsData.setSignalStrength(parser.getValueAsInt());
+                        break;
+                    case "additionalInfo":
+                        gpsData.setAdditionalInfo(parser.getValueAsString());
+                        break;
+                    case "seq":
+                        seq = parser.getValueAsLong(-1);
+                        break;
+                    case "ackMode":
+                        ackMode = parser.getValueAsString();
+                        break;
+                    case "ackEvery":
+                        ackEvery = parser.getValueAsInt();
+                        break;
+                    case "ackIntervalMs":
+                        ackIntervalMs = parser.getValueAsLong();
+                        break;
+                    default:
+                        if (value.isStructStart()) {
+                            parser.skipChildren();
+                        }
+                        break;
+                }
+                firstField = false;
+            }
+
+            if ("heartbeat".equals(type)) {
+                return DecodedMessage.HEARTBEAT;
+            }
+            return new DecodedMessage("register".equals(type), gpsData, seq, ackMode, ackEvery, ackIntervalMs);
+        }
+    }
+
+    /**
+     * Parses yyyy-MM-ddTHH:mm:ss[.fraction][Z] in place from the parser's buffer. The
+     * general formatter allocates over 1.5 KB per call, more than the rest of the decode.
+     *
+     * Timestamps are UTC, as everywhere else in the tracker: a trailing Z changes nothing,
+     * and a timestamp with another offset or zone is converted to UTC.
+     */
+    static LocalDateTime parseTimestamp(char[] text, int offset, int length) {
+        int end = offset + length;
+        if (length >= 19 && text[offset + 4] == '-' && text[offset + 7] == '-' && text[offset + 10] == 'T'
+                && text[offset + 13] == ':' && text[offset + 16] == ':') {
+            int year = digits(text, offset, 4);
+            int month = digits(text, offset + 5, 2);
+            int day = digits(text, offset + 8, 2);
+            int hour = digits(text, offset + 11, 2);
+            int minute = digits(text, offset + 14, 2);
+            int second = digits(text, offset + 17, 2);
+
+            int i = offset + 19;
+            int nanos = 0;
+            if (i < end && text[i] == '.') {
+                int fractionDigits = 0;
+                for (i++; i < end && text[i] >= '0' && text[i] <= '9'; i++, fractionDigits++) {
+                    if (fractionDigits < 9) {
+                        nanos = nanos * 10 + (text[i] - '0');
+                    }
+                }
+                for (; fractionDigits < 9; fractionDigits++) {
+                    nanos *= 10;
+                }
+            }
+            if (i < end && text[i] == 'Z') {
+                i++; // already UTC
+            }
+
+            if (i == end && (year | month | day | hour | minute | second) >= 0) {
+                return LocalDateTime.of(year, month, day, hour, minute, second, nanos);
+            }
+        }
+        // Anything unusual (offsets, zone ids, ...) goes through the full formatter
+        TemporalAccessor parsed = DateTimeFormatter.ISO_DATE_TIME.parseBest(
+                new String(text, offset, length), ZonedDateTime::from, LocalDateTime::from);
+        if (parsed instanceof ZonedDateTime) {
+            return ((ZonedDateTime) parsed).withZoneSameInstant(ZoneOffset.UTC).toLocalDateTime();
+        }
+        return (LocalDateTime) parsed;
+    }
+
+    private static int digits(char[] text, int from, int count) {
+        int result = 0;
+        for (int i = from; i < from + count; i++) {
+            char c = text[i];
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    public static final class DecodedMessage {
+        static final DecodedMessage HEARTBEAT = new DecodedMessage(false, null, -1, null, 0, 0);
+
+        private final boolean registration;
+        private final GpsData gpsData;
+        private final long seq;
+        // Ack negotiation, only meaningful on the registering message
+        private final String ackMode;
+        private final int ackEvery;
+        private final long ackIntervalMs;
+
+        private DecodedMessage(boolean registration, GpsData gpsData, long seq,
+                               String ackMode, int ackEvery, long ackIntervalMs) {
+            this.registration = registration;
+            this.gpsData = gpsData;
+            this.seq = seq;
+            this.ackMode = ackMode;
+            this.ackEvery = ackEvery;
+            this.ackIntervalMs = ackIntervalMs;
+        }
+
+        public boolean isHeartbeat() {
+            return this == HEARTBEAT;
+        }
+
+        public boolean isRegistration() {
+            return registration;
+        }
+
+        public GpsData getGpsData() {
+            return gpsData;
+        }
+
+        /**
+         * Device-assigned sequence number, or -1 if the message carried none
+         */
+        public long getSeq() {
+            return seq;
+        }
+
+        public String getAckMode() {
+            return ackMode;
+        }
+
+        public int getAckEvery() {
+            return ackEvery;
+        }
+
+        public long getAckIntervalMs() {
+            return ackIntervalMs;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.gpstracker.websocket;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gpstracker.model.GpsData;
+import com.gpstracker.service.ingest.IngestListener;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+
+import java.util.List;
+
+/**
+ * Pushes saved readings to STOMP subscribers once the ingest pipeline has stored them.
+ * Each reading is serialized once and handed to LiveUpdateConflater, which sends the
+ * latest per device to /topic/device/{id}, to /user/queue/updates of every session whose
+ * device list or viewport matches, and to /topic/updates if gps.live.firehose-enabled is set.
+ * With gps.cluster.mode=redis, LiveUpdateBackplane delivers readings saved on other nodes.
+ * Alerts, offline ones included, are published by AlertService as records when raised or cleared.
+ */
+@Slf4j
+@Component
+public class GpsUpdateBroadcaster implements IngestListener {
+
+    @Autowired
+    private SimpMessagingTemplate messagingTemplate;
+
+    @Autowired
+    private LiveUpdateConflater liveUpdates;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Override
+    public void onSaved(List<GpsData> batch) {
+        for (GpsData gpsData : batch) {
+            Message<byte[]> message;
+            try {
+                message = toMessage(objectMapper, gpsData);
+            } catch (JsonProcessingException e) {
+                log.error("Cannot serialize reading of device {}", gpsData.getDeviceId(), e);
+                continue;
+            }
+
+            liveUpdates.offer(gpsData, message);
+        }
+    }
+
+    /**
+     * The STOMP message for a reading, shared by every destination it is sent to
+     */
+    static Message<byte[]> toMessage(ObjectMapper objectMapper, GpsData gpsData) throws JsonProcessingException {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        headers.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        return MessageBuilder.createMessage(objectMapper.writeValueAsBytes(gpsData), headers.getMessageHeaders());
+    }
+}
@@ -1,60 +1,130 @@
 package com.gpstracker.websocket;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.gpstracker.model.GpsData;
-import com.gpstracker.service.GpsDataService;
+import com.gpstracker.service.ingest.IngestionPipeline;
+import com.gpstracker.websocket.LiveSubscriptionRegistry.Viewport;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.messaging.handler.annotation.MessageMapping;
-import org.springframework.messaging.handler.annotation.SendTo;
-import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.security.Principal;
+import java.util.Collections;
+import java.util.List;
 
 @Slf4j
 @Controller
 public class GpsWebSocketController {
 
     @Autowired
-    private GpsDataService gpsDataService;
+    private IngestionPipeline ingestionPipeline;
 
     @Autowired
-    private SimpMessagingTemplate messagingTemplate;
+    private LiveSubscriptionRegistry liveSubscriptions;
 
-    @MessageMapping("/gps")
-    @SendTo("/topic/updates")
-    public GpsData handleGpsData(GpsData gpsData) {
-        try {
-            // Save the GPS data
-            gpsDataService.saveGpsData(gpsData);
-            
-            // Send device-specific updates
-            messagingTemplate.convertAndSend(
-                "/topic/device/" + gpsData.getDeviceId(),
-                gpsData
-            );
-
-            // Send alerts if any are triggered
-            if (gpsData.isLowBattery() || gpsData.isSpeedAlert() || 
-                gpsData.isGeofenceAlert() || gpsData.isMalfunctionAlert()) {
-                messagingTemplate.convertAndSend(
-                    "/topic/alerts/" + gpsData.getDeviceId(),
-                    gpsData
-                );
-            }
+    @Autowired
+    private ObjectMapper objectMapper;
 
-            return gpsData;
-        } catch (Exception e) {
-            log.error("Error handling GPS data via WebSocket: ", e);
-            throw e;
+    /**
+     * Only enqueues the reading; GpsUpdateBroadcaster publishes it to /topic/device/{id}
+     * and to the /user/queue/updates of every matching subscription once it is saved
+     */
+    @MessageMapping("/gps")
+    public void handleGpsData(GpsData gpsData) {
+        if (gpsData.getDeviceId() == null) {
+            log.warn("Ignoring STOMP GPS data without device ID");
+            return;
+        }
+        if (!ingestionPipeline.submit(gpsData)) {
+            log.warn("Ingest queue full, rejected STOMP GPS data from device {}", gpsData.getDeviceId());
         }
     }
 
+    /**
+     * Adds devices to the session's live updates; the body is a device ID or a JSON array of them
+     */
     @MessageMapping("/subscribe")
-    public void subscribeToDevice(String deviceId) {
-        log.info("New subscription for device: {}", deviceId);
+    public void subscribeToDevice(String payload,
+                                  @Header(SimpMessageHeaderAccessor.SESSION_ID_HEADER) String sessionId,
+                                  Principal principal) {
+        if (principal == null) {
+            log.warn("Ignoring subscription from session {} without a user", sessionId);
+            return;
+        }
+        try {
+            List<String> deviceIds = parseDeviceIds(payload);
+            liveSubscriptions.subscribeDevices(sessionId, principal.getName(), deviceIds);
+            log.debug("Session {} subscribed to devices {}", sessionId, deviceIds);
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected subscription from session {}: {}", sessionId, e.getMessage());
+        }
     }
 
     @MessageMapping("/unsubscribe")
-    public void unsubscribeFromDevice(String deviceId) {
-        log.info("Unsubscribed from device: {}", deviceId);
+    public void unsubscribeFromDevice(String payload,
+                                      @Header(SimpMessageHeaderAccessor.SESSION_ID_HEADER) String sessionId) {
+        try {
+            List<String> deviceIds = parseDeviceIds(payload);
+            liveSubscriptions.unsubscribeDevices(sessionId, deviceIds);
+            log.debug("Session {} unsubscribed from devices {}", sessionId, deviceIds);
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected unsubscription from session {}: {}", sessionId, e.getMessage());
+        }
+    }
+
+    /**
+     * Sets the map area the session receives every reading from, as
+     * {"minLat":..,"minLon":..,"maxLat":..,"maxLon":..}; an empty body or {} clears it
+     */
+    @MessageMapping("/viewport")
+    public void setViewport(String payload,
+                            @Header(SimpMessageHeaderAccessor.SESSION_ID_HEADER) String sessionId,
+                            Principal principal) {
+        if (principal == null) {
+            log.warn("Ignoring viewport from session {} without a user", sessionId);
+            return;
+        }
+        try {
+            JsonNode node = payload == null || payload.isBlank() ? null : objectMapper.readTree(payload);
+            Viewport viewport = node == null || node.isNull() || node.size() == 0
+                    ? null
+                    : objectMapper.treeToValue(node, Viewport.class);
+            liveSubscriptions.setViewport(sessionId, principal.getName(), viewport);
+        } catch (JsonProcessingException | IllegalArgumentException e) {
+            log.warn("Rejected viewport from session {}: {}", sessionId, e.getMessage());
+        }
+    }
+
+    @EventListener
+    public void onDisconnect(SessionDisconnectEvent event) {
+        liveSubscriptions.removeSession(event.getSessionId());
+    }
+
+    private List<String> parseDeviceIds(String payload) {
+        String body = payload == null ? "" : payload.trim();
+        List<String> deviceIds;
+        try {
+            if (body.startsWith("[")) {
+                deviceIds = objectMapper.readValue(body, new TypeReference<List<String>>() {});
+            } else if (body.startsWith("\"")) {
+                deviceIds = Collections.singletonList(objectMapper.readValue(body, String.class));
+            } else {
+                // The original dashboard sends the bare device ID
+                deviceIds = Collections.singletonList(body);
+            }
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Invalid device list");
+        }
+
+        LiveSubscriptionRegistry.validateDeviceIds(deviceIds);
+        return deviceIds;
     }
 }
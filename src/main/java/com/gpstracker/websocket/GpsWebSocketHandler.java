@@ -1,49 +1,95 @@
 package com.gpstracker.websocket;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.gpstracker.model.GpsData;
-import com.gpstracker.service.GpsDataService;
+import com.gpstracker.service.ingest.IngestionPipeline;
+import com.gpstracker.websocket.DeviceSessionManager.DeviceSession;
+import com.gpstracker.websocket.GpsMessageDecoder.DecodedMessage;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PongMessage;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.time.LocalDateTime;
-import java.util.HashMap;
+import java.time.ZoneOffset;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Slf4j
 @Component
 public class GpsWebSocketHandler extends TextWebSocketHandler {
 
-    private final Map<String, WebSocketSession> sessions = new ConcurrentHashMap<>();
-    private final Map<String, String> sessionToDeviceId = new ConcurrentHashMap<>();
-    private final ObjectMapper objectMapper;
+    private static final String ACK_MODE_CUMULATIVE = "cumulative";
+    private static final int MAX_ACK_EVERY = 1000;
+    private static final long MIN_ACK_INTERVAL_MS = 10;
+    private static final long MAX_ACK_INTERVAL_MS = 60_000;
+
+    // Cumulative ack frames are only ever this prefix, two numbers and a brace
+    private static final String CUMULATIVE_ACK_PREFIX = "{\"type\":\"ack\",\"mode\":\"cumulative\",\"seq\":";
+    private static final String CUMULATIVE_ACK_COUNT = ",\"count\":";
+
+    private final Map<String, CumulativeAck> cumulativeAcks = new ConcurrentHashMap<>();
+
+    @Value("${gps.ws.ack.default-every:50}")
+    private int defaultAckEvery;
+
+    @Value("${gps.ws.ack.default-interval-ms:1000}")
+    private long defaultAckIntervalMs;
+
+    @Value("${gps.ws.ack.flush-tick-ms:50}")
+    private long ackFlushTickMs;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private GpsMessageDecoder messageDecoder;
     
     @Autowired
-    private GpsDataService gpsDataService;
+    private IngestionPipeline ingestionPipeline;
 
-    public GpsWebSocketHandler() {
-        this.objectMapper = new ObjectMapper();
-        this.objectMapper.registerModule(new JavaTimeModule());
-        this.objectMapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+    @Autowired
+    private DeviceSessionManager sessionManager;
+
+    private ScheduledExecutorService ackFlusher;
+
+    @PostConstruct
+    public void startAckFlusher() {
+        // Own thread rather than the shared @Scheduled one, which also runs the exports
+        ackFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gps-ws-ack");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ackFlusher.scheduleWithFixedDelay(this::flushDueAcks, ackFlushTickMs, ackFlushTickMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stopAckFlusher() {
+        ackFlusher.shutdownNow();
     }
 
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
         String sessionId = session.getId();
         log.info("New WebSocket connection established. Session ID: {}", sessionId);
-        sessions.put(sessionId, session);
+        DeviceSession deviceSession = sessionManager.open(session);
         
         // Send welcome message
-        sendMessage(session, Map.of(
+        sendMessage(deviceSession, Map.of(
             "type", "welcome",
             "message", "Connection established. Please send device ID."
         ));
@@ -51,110 +97,257 @@ public class GpsWebSocketHandler extends TextWebSocketHandler {
 
     @Override
     protected void handleTextMessage(WebSocketSession session, TextMessage message) {
-        try {
-            String messagePayload = message.getPayload();
-            log.info("Server received: {}", messagePayload);
-
-            // Use HashMap for deserialization
-            HashMap<?, ?> value = objectMapper.readValue(messagePayload, HashMap.class);
-
-            String deviceId = (String) value.get("deviceId");
-            Double latitude = value.containsKey("latitude") ? Double.parseDouble(value.get("latitude").toString()) : null;
-            Double longitude = value.containsKey("longitude") ? Double.parseDouble(value.get("longitude").toString()) : null;
-            Double speed = value.containsKey("speed") ? Double.parseDouble(value.get("speed").toString()) : null;
-            Double heading = value.containsKey("heading") ? Double.parseDouble(value.get("heading").toString()) : null;
-            String timestampString = (String) value.get("timestamp");
-            String additionalInfo = (String) value.get("additionalInfo");
-
-
-            GpsData gpsData = GpsData.builder()
-                    .deviceId(deviceId)
-                    .latitude(latitude != null ? latitude : 0.0) // Default values
-                    .longitude(longitude != null ? longitude : 0.0)
-                    .speed(speed != null ? speed : 0.0)
-                    .heading(heading != null ? heading : 0.0)
-                    .timestamp(LocalDateTime.parse(timestampString))
-                    .additionalInfo(additionalInfo)
-                    .build();
+        DeviceSession deviceSession = sessionManager.get(session.getId());
+        if (deviceSession == null) {
+            // Closed by the session manager while this message was in flight
+            return;
+        }
+        deviceSession.touch();
 
+        try {
+            log.trace("Server received: {}", message.getPayload());
 
-            String sessionId = session.getId();
+            DecodedMessage decoded = messageDecoder.decode(message.getPayload());
             
             // Handle heartbeat messages
-            if (value.containsKey("type") && "heartbeat".equals(value.get("type"))) {
-                handleHeartbeat(session);
+            if (decoded.isHeartbeat()) {
+                handleHeartbeat(deviceSession);
                 return;
             }
 
+            GpsData gpsData = decoded.getGpsData();
+            String deviceId = gpsData.getDeviceId();
+            String sessionId = session.getId();
+
             // Handle device registration if not already registered
-            if (!sessionToDeviceId.containsKey(sessionId)) {
-                if (value.containsKey("deviceId")) {
-                    deviceId = (String) value.get("deviceId");
-                    sessionToDeviceId.put(sessionId, deviceId);
+            if (deviceSession.getDeviceId() == null) {
+                if (deviceId != null) {
+                    sessionManager.register(deviceSession, deviceId);
                     log.info("Device {} registered with session {}", deviceId, sessionId);
-                    sendMessage(session, Map.of(
-                        "type", "registration",
-                        "status", "success",
-                        "deviceId", deviceId
-                    ));
-                    return;
+                    sendRegistration(deviceSession, deviceId, negotiateAck(session, decoded));
                 } else {
-                    sendError(session, "Device ID not provided");
-                    return;
+                    sendError(deviceSession, "Device ID not provided");
                 }
+                return;
+            }
+
+            if (decoded.isRegistration()) {
+                sendError(deviceSession, "Session already registered");
+                return;
             }
 
             // Verify deviceId from session and message
-            String sessionDeviceId = sessionToDeviceId.get(sessionId);
-            if (sessionDeviceId == null || !sessionDeviceId.equals(gpsData.getDeviceId())) {
-                sendError(session, "Device ID mismatch or session error");
+            if (!deviceSession.getDeviceId().equals(deviceId)) {
+                sendError(deviceSession, "Device ID mismatch or session error");
                 return;
             }
 
+            if (gpsData.getTimestamp() == null) {
+                gpsData.setTimestamp(LocalDateTime.now(ZoneOffset.UTC));
+            }
+
+            CumulativeAck cumulativeAck = cumulativeAcks.get(sessionId);
 
-            gpsDataService.saveGpsData(gpsData);
-            sendMessage(session, Map.of(
-                "type", "ack",
-                "status", "received",
-                "timestamp", gpsData.getTimestamp().toString()
-            ));
+            // Decode and enqueue only; storage happens on the ingest workers
+            if (!ingestionPipeline.submit(gpsData)) {
+                if (cumulativeAck != null) {
+                    // Settle everything before the rejected message so the device resends from here
+                    cumulativeAck.flush(deviceSession);
+                }
+                Map<String, Object> nack = new LinkedHashMap<>();
+                nack.put("type", "nack");
+                nack.put("status", "overloaded");
+                nack.put("timestamp", gpsData.getTimestamp().toString());
+                if (decoded.getSeq() >= 0) {
+                    nack.put("seq", decoded.getSeq());
+                }
+                sendMessage(deviceSession, nack);
+                return;
+            }
+
+            if (cumulativeAck != null) {
+                cumulativeAck.record(decoded.getSeq(), deviceSession);
+            } else {
+                sendMessage(deviceSession, Map.of(
+                    "type", "ack",
+                    "status", "received",
+                    "timestamp", gpsData.getTimestamp().toString()
+                ));
+            }
             
-            log.debug("Processed GPS data from device {}: {}", deviceId, gpsData);
+            log.trace("Queued GPS data from device {}: {}", deviceId, gpsData);
 
         } catch (Exception e) {
             log.error("Error processing message: ", e);
-            sendError(session, "Error processing message: " + e.getMessage());
+            sendError(deviceSession, "Error processing message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A registering device may ask for cumulative acks with "ackMode":"cumulative" and
+     * optionally "ackEvery" (messages) and "ackIntervalMs". Returns null to keep per-message acks.
+     */
+    private CumulativeAck negotiateAck(WebSocketSession session, DecodedMessage decoded) {
+        if (!ACK_MODE_CUMULATIVE.equals(decoded.getAckMode())) {
+            return null;
+        }
+
+        int every = decoded.getAckEvery() > 0 ? decoded.getAckEvery() : defaultAckEvery;
+        long intervalMs = decoded.getAckIntervalMs() > 0 ? decoded.getAckIntervalMs() : defaultAckIntervalMs;
+        CumulativeAck cumulativeAck = new CumulativeAck(
+            Math.min(every, MAX_ACK_EVERY),
+            Math.max(MIN_ACK_INTERVAL_MS, Math.min(intervalMs, MAX_ACK_INTERVAL_MS))
+        );
+        cumulativeAcks.put(session.getId(), cumulativeAck);
+        return cumulativeAck;
+    }
+
+    private void sendRegistration(DeviceSession deviceSession, String deviceId, CumulativeAck cumulativeAck) {
+        Map<String, Object> registration = new LinkedHashMap<>();
+        registration.put("type", "registration");
+        registration.put("status", "success");
+        registration.put("deviceId", deviceId);
+        // Sessions silent for three of these intervals are closed
+        registration.put("heartbeatIntervalMs", sessionManager.heartbeatIntervalMs());
+        if (cumulativeAck != null) {
+            // Echo the values actually in effect, which may be clamped
+            registration.put("ackMode", ACK_MODE_CUMULATIVE);
+            registration.put("ackEvery", cumulativeAck.every);
+            registration.put("ackIntervalMs", cumulativeAck.intervalMs);
         }
+        sendMessage(deviceSession, registration);
+    }
+
+    /**
+     * Sends the pending ack of every cumulative session whose interval has elapsed
+     */
+    private void flushDueAcks() {
+        long now = System.currentTimeMillis();
+        cumulativeAcks.forEach((sessionId, cumulativeAck) -> {
+            DeviceSession deviceSession = sessionManager.get(sessionId);
+            if (deviceSession != null) {
+                try {
+                    cumulativeAck.flushIfDue(now, deviceSession);
+                } catch (RuntimeException e) {
+                    log.error("Error flushing acks for session {}", sessionId, e);
+                }
+            }
+        });
     }
 
-    private void handleHeartbeat(WebSocketSession session) {
-        sendMessage(session, Map.of(
+
+    private void handleHeartbeat(DeviceSession deviceSession) {
+        sendMessage(deviceSession, Map.of(
             "type", "heartbeat",
             "status", "received"
         ));
     }
 
-    private void sendError(WebSocketSession session, String message) {
-        sendMessage(session, Map.of(
+    private void sendError(DeviceSession deviceSession, String message) {
+        sendMessage(deviceSession, Map.of(
             "type", "error",
             "message", message
         ));
     }
 
-    private void sendMessage(WebSocketSession session, Map<String, Object> message) {
+    private void sendMessage(DeviceSession deviceSession, Map<String, Object> message) {
         try {
-            String jsonMessage = objectMapper.writeValueAsString(message);
-            session.sendMessage(new TextMessage(jsonMessage));
+            deviceSession.send(new TextMessage(objectMapper.writeValueAsString(message)));
         } catch (IOException e) {
-            log.error("Error sending message to session {}", session.getId(), e);
+            log.error("Error sending message to session {}", deviceSession.getSessionId(), e);
+        }
+    }
+
+    @Override
+    protected void handlePongMessage(WebSocketSession session, PongMessage message) {
+        DeviceSession deviceSession = sessionManager.get(session.getId());
+        if (deviceSession != null) {
+            deviceSession.touch();
         }
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
         String sessionId = session.getId();
-        sessions.remove(sessionId);
-        sessionToDeviceId.remove(sessionId);
+        sessionManager.closed(sessionId);
+        cumulativeAcks.remove(sessionId);
         log.info("WebSocket connection closed. Session ID: {}", sessionId);
     }
+
+    /**
+     * Pending acknowledgement state of one cumulative-ack session. The highest accepted
+     * sequence number is acked once every N messages or after T ms, whichever comes first.
+     * Devices that don't send "seq" are acked by the server's count of accepted messages.
+     *
+     * The message thread and the ack flusher both send acks, so a frame is built and sent
+     * under one lock; otherwise an older frame could overtake a newer one and the device
+     * would see the acked seq go backwards. The send may write to the socket, so the shared
+     * flusher only tries the lock and leaves a busy session to its next tick.
+     */
+    private static final class CumulativeAck {
+        private final int every;
+        private final long intervalMs;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private long received;
+        private long seq = -1;
+        private int pending;
+        private long lastAckAt = System.currentTimeMillis();
+
+        private CumulativeAck(int every, long intervalMs) {
+            this.every = every;
+            this.intervalMs = intervalMs;
+        }
+
+        void record(long messageSeq, DeviceSession deviceSession) {
+            lock.lock();
+            try {
+                received++;
+                // A retransmitted older seq must not move the acked position back
+                seq = Math.max(seq, messageSeq >= 0 ? messageSeq : received);
+                pending++;
+                if (pending >= every) {
+                    send(deviceSession);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void flushIfDue(long now, DeviceSession deviceSession) {
+            if (!lock.tryLock()) {
+                return;
+            }
+            try {
+                if (pending > 0 && now - lastAckAt >= intervalMs) {
+                    send(deviceSession);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void flush(DeviceSession deviceSession) {
+            lock.lock();
+            try {
+                send(deviceSession);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void send(DeviceSession deviceSession) {
+            if (pending == 0) {
+                return;
+            }
+            String frame = new StringBuilder(CUMULATIVE_ACK_PREFIX.length() + 32)
+                .append(CUMULATIVE_ACK_PREFIX).append(seq)
+                .append(CUMULATIVE_ACK_COUNT).append(pending)
+                .append('}')
+                .toString();
+            pending = 0;
+            lastAckAt = System.currentTimeMillis();
+            deviceSession.send(new TextMessage(frame));
+        }
+    }
 }
@@ -0,0 +1,215 @@
+package com.gpstracker.websocket;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gpstracker.model.GpsData;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Map;
+
+/**
+ * Binary position events exchanged between nodes over the live update backplane. All
+ * values are big-endian; a string is an i32 byte length (-1 for null) and UTF-8 bytes.
+ *
+ * <pre>
+ * u8  version (1)
+ * str origin node id, str device id
+ * u8  flags: 0x01 lowBattery, 0x02 geofenceAlert, 0x04 speedAlert, 0x08 malfunctionAlert,
+ *            0x10 timestamp present, 0x20 extended data present
+ * i64 epochSecond, i32 nano (UTC)                       if 0x10
+ * f64 lat, lon, speed, heading, battery, accuracy, altitude, temperature, humidity
+ * i32 signalStrength
+ * str deviceStatus, str networkType
+ * str additionalInfo, str metadata as JSON              if 0x20
+ * </pre>
+ *
+ * Values are kept at full precision so a node rebuilds exactly the JSON the origin node
+ * sends its own dashboards; a typical event is around a third of that JSON.
+ */
+final class LivePositionCodec {
+
+    static final byte VERSION = 1;
+
+    private static final int LOW_BATTERY = 0x01;
+    private static final int GEOFENCE_ALERT = 0x02;
+    private static final int SPEED_ALERT = 0x04;
+    private static final int MALFUNCTION_ALERT = 0x08;
+    private static final int HAS_TIMESTAMP = 0x10;
+    private static final int HAS_EXTENDED = 0x20;
+
+    private static final int FIXED_LENGTH = 1 + 1 + 9 * 8 + 4;
+    private static final int TIMESTAMP_LENGTH = 8 + 4;
+
+    private LivePositionCodec() {
+    }
+
+    static byte[] encode(String nodeId, GpsData data, ObjectMapper objectMapper) throws IOException {
+        byte[] node = bytes(nodeId);
+        byte[] deviceId = bytes(data.getDeviceId());
+        byte[] status = bytes(data.getDeviceStatus());
+        byte[] network = bytes(data.getNetworkType());
+        boolean extended = data.getAdditionalInfo() != null || data.getMetadata() != null;
+        byte[] info = extended ? bytes(data.getAdditionalInfo()) : null;
+        byte[] metadata = extended && data.getMetadata() != null ? objectMapper.writeValueAsBytes(data.getMetadata()) : null;
+
+        int length = FIXED_LENGTH + size(node) + size(deviceId) + size(status) + size(network)
+                + (data.getTimestamp() != null ? TIMESTAMP_LENGTH : 0)
+                + (extended ? size(info) + size(metadata) : 0);
+        ByteBuffer out = ByteBuffer.allocate(length);
+
+        int flags = (data.isLowBattery() ? LOW_BATTERY : 0)
+                | (data.isGeofenceAlert() ? GEOFENCE_ALERT : 0)
+                | (data.isSpeedAlert() ? SPEED_ALERT : 0)
+                | (data.isMalfunctionAlert() ? MALFUNCTION_ALERT : 0)
+                | (data.getTimestamp() != null ? HAS_TIMESTAMP : 0)
+                | (extended ? HAS_EXTENDED : 0);
+
+        out.put(VERSION);
+        put(out, node);
+        put(out, deviceId);
+        out.put((byte) flags);
+        if (data.getTimestamp() != null) {
+            out.putLong(data.getTimestamp().toEpochSecond(ZoneOffset.UTC));
+            out.putInt(data.getTimestamp().getNano());
+        }
+        out.putDouble(data.getLatitude());
+        out.putDouble(data.getLongitude());
+        out.putDouble(data.getSpeed());
+        out.putDouble(data.getHeading());
+        out.putDouble(data.getBatteryLevel());
+        out.putDouble(data.getAccuracy());
+        out.putDouble(data.getAltitude());
+        out.putDouble(data.getTemperature());
+        out.putDouble(data.getHumidity());
+        out.putInt(data.getSignalStrength());
+        put(out, status);
+        put(out, network);
+        if (extended) {
+            put(out, info);
+            put(out, metadata);
+        }
+        return out.array();
+    }
+
+    /**
+     * Reads the origin node, device and position only, so a node can drop its own events and
+     * those nobody connected to it follows without decoding them
+     */
+    static Route decodeRoute(byte[] event) throws IOException {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(event);
+            checkVersion(in);
+            String nodeId = string(in);
+            String deviceId = string(in);
+            int flags = in.get() & 0xff;
+            if ((flags & HAS_TIMESTAMP) != 0) {
+                in.position(in.position() + TIMESTAMP_LENGTH);
+            }
+            return new Route(nodeId, deviceId, in.getDouble(), in.getDouble());
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed position event", e);
+        }
+    }
+
+    static GpsData decode(byte[] event, ObjectMapper objectMapper) throws IOException {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(event);
+            checkVersion(in);
+            string(in);
+
+            GpsData data = new GpsData();
+            data.setDeviceId(string(in));
+            int flags = in.get() & 0xff;
+            data.setLowBattery((flags & LOW_BATTERY) != 0);
+            data.setGeofenceAlert((flags & GEOFENCE_ALERT) != 0);
+            data.setSpeedAlert((flags & SPEED_ALERT) != 0);
+            data.setMalfunctionAlert((flags & MALFUNCTION_ALERT) != 0);
+            if ((flags & HAS_TIMESTAMP) != 0) {
+                data.setTimestamp(LocalDateTime.ofEpochSecond(in.getLong(), in.getInt(), ZoneOffset.UTC));
+            }
+            data.setLatitude(in.getDouble());
+            data.setLongitude(in.getDouble());
+            data.setSpeed(in.getDouble());
+            data.setHeading(in.getDouble());
+            data.setBatteryLevel(in.getDouble());
+            data.setAccuracy(in.getDouble());
+            data.setAltitude(in.getDouble());
+            data.setTemperature(in.getDouble());
+            data.setHumidity(in.getDouble());
+            data.setSignalStrength(in.getInt());
+            data.setDeviceStatus(string(in));
+            data.setNetworkType(string(in));
+            if ((flags & HAS_EXTENDED) != 0) {
+                data.setAdditionalInfo(string(in));
+                byte[] metadata = raw(in);
+                if (metadata != null) {
+                    data.setMetadata(objectMapper.readValue(metadata, new TypeReference<Map<String, Object>>() {}));
+                }
+            }
+            return data;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed position event", e);
+        }
+    }
+
+    static final class Route {
+        final String nodeId;
+        final String deviceId;
+        final double latitude;
+        final double longitude;
+
+        private Route(String nodeId, String deviceId, double latitude, double longitude) {
+            this.nodeId = nodeId;
+            this.deviceId = deviceId;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+    }
+
+    private static void checkVersion(ByteBuffer in) {
+        byte version = in.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported position event version " + version);
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static int size(byte[] value) {
+        return 4 + (value != null ? value.length : 0);
+    }
+
+    private static void put(ByteBuffer out, byte[] value) {
+        if (value == null) {
+            out.putInt(-1);
+        } else {
+            out.putInt(value.length);
+            out.put(value);
+        }
+    }
+
+    private static String string(ByteBuffer in) {
+        byte[] value = raw(in);
+        return value != null ? new String(value, StandardCharsets.UTF_8) : null;
+    }
+
+    private static byte[] raw(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new IllegalArgumentException("String length " + length + " exceeds event");
+        }
+        byte[] value = new byte[length];
+        in.get(value);
+        return value;
+    }
+}
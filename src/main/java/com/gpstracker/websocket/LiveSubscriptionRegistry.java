@@ -0,0 +1,293 @@
+package com.gpstracker.websocket;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * What each dashboard session wants to see live: a list of devices, a map viewport, or
+ * both. Viewports are indexed in a uniform grid like the geofence zones, so routing a
+ * reading costs a device lookup and one cell probe rather than a pass over all sessions.
+ * Viewports too large for the grid are kept aside and tested on every reading.
+ *
+ * Index sets are created, added to and dropped only inside the index map's compute, so an
+ * add never lands in a set another session has just emptied and removed. Changes to one
+ * session hold its lock and re-check that it is still registered, so a request racing the
+ * disconnect cannot put a closed session back into the indexes.
+ */
+@Component
+public class LiveSubscriptionRegistry {
+
+    private static final int MAX_CELLS_PER_VIEWPORT = 1024;
+    private static final int MAX_DEVICES_PER_SESSION = 1000;
+    private static final int MAX_DEVICE_ID_LENGTH = 128;
+
+    @Value("${gps.live.cell-degrees:0.25}")
+    private double cellDegrees;
+
+    private final Map<String, LiveSession> sessions = new ConcurrentHashMap<>();
+    private final Map<String, Set<LiveSession>> deviceSubscribers = new ConcurrentHashMap<>();
+    private final Map<Long, Set<LiveSession>> viewportCells = new ConcurrentHashMap<>();
+    private final Set<LiveSession> wideViewports = ConcurrentHashMap.newKeySet();
+
+    public void subscribeDevices(String sessionId, String user, Collection<String> deviceIds) {
+        LiveSession session = sessions.computeIfAbsent(sessionId, id -> new LiveSession(id, user));
+        synchronized (session) {
+            if (!isRegistered(session)) {
+                return;
+            }
+            if (session.devices.size() + deviceIds.size() > MAX_DEVICES_PER_SESSION) {
+                throw new IllegalArgumentException("At most " + MAX_DEVICES_PER_SESSION + " devices per session");
+            }
+            for (String deviceId : deviceIds) {
+                if (session.devices.add(deviceId)) {
+                    addTo(deviceSubscribers, deviceId, session);
+                }
+            }
+        }
+    }
+
+    public void unsubscribeDevices(String sessionId, Collection<String> deviceIds) {
+        LiveSession session = sessions.get(sessionId);
+        if (session == null) {
+            return;
+        }
+        synchronized (session) {
+            for (String deviceId : deviceIds) {
+                if (session.devices.remove(deviceId)) {
+                    removeFrom(deviceSubscribers, deviceId, session);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the session's viewport; null stops viewport updates
+     */
+    public void setViewport(String sessionId, String user, Viewport viewport) {
+        if (viewport != null) {
+            viewport.validate();
+        }
+        LiveSession session = sessions.computeIfAbsent(sessionId, id -> new LiveSession(id, user));
+        synchronized (session) {
+            if (!isRegistered(session)) {
+                return;
+            }
+            clearViewport(session);
+            if (viewport == null) {
+                return;
+            }
+
+            long fromLat = cell(viewport.minLat), toLat = cell(viewport.maxLat);
+            long fromLon = cell(viewport.minLon), toLon = cell(viewport.maxLon);
+            boolean wide = (toLat - fromLat + 1) * (toLon - fromLon + 1) > MAX_CELLS_PER_VIEWPORT;
+            IndexedViewport indexed = new IndexedViewport(viewport, wide);
+
+            if (wide) {
+                wideViewports.add(session);
+            } else {
+                for (long y = fromLat; y <= toLat; y++) {
+                    for (long x = fromLon; x <= toLon; x++) {
+                        long cellKey = cellKey(y, x);
+                        addTo(viewportCells, cellKey, session);
+                        indexed.cellKeys.add(cellKey);
+                    }
+                }
+            }
+            session.viewport = indexed;
+        }
+    }
+
+    public void removeSession(String sessionId) {
+        LiveSession session = sessions.remove(sessionId);
+        if (session == null) {
+            return;
+        }
+        synchronized (session) {
+            for (String deviceId : session.devices) {
+                removeFrom(deviceSubscribers, deviceId, session);
+            }
+            session.devices.clear();
+            clearViewport(session);
+        }
+    }
+
+    /**
+     * Passes the session id and user of every session that should receive a reading of
+     * the device at this position to action, once per session
+     */
+    public void forEachRecipient(String deviceId, double lat, double lon, BiConsumer<String, String> action) {
+        if (sessions.isEmpty()) {
+            return;
+        }
+
+        Set<LiveSession> byDevice = deviceSubscribers.get(deviceId);
+        if (byDevice != null) {
+            for (LiveSession session : byDevice) {
+                action.accept(session.sessionId, session.user);
+            }
+        }
+
+        Set<LiveSession> inCell = viewportCells.get(cellKey(cell(lat), cell(lon)));
+        if (inCell != null) {
+            for (LiveSession session : inCell) {
+                deliverInViewport(session, false, deviceId, lat, lon, action);
+            }
+        }
+        for (LiveSession session : wideViewports) {
+            deliverInViewport(session, true, deviceId, lat, lon, action);
+        }
+    }
+
+    /**
+     * Whether forEachRecipient would pass any session for a reading of the device at this position
+     */
+    public boolean hasRecipient(String deviceId, double lat, double lon) {
+        if (sessions.isEmpty()) {
+            return false;
+        }
+        if (deviceSubscribers.containsKey(deviceId)) {
+            return true;
+        }
+        Set<LiveSession> inCell = viewportCells.get(cellKey(cell(lat), cell(lon)));
+        if (inCell != null && anyViewportContains(inCell, false, lat, lon)) {
+            return true;
+        }
+        return anyViewportContains(wideViewports, true, lat, lon);
+    }
+
+    static void validateDeviceIds(List<String> deviceIds) {
+        if (deviceIds == null) {
+            throw new IllegalArgumentException("Invalid device list");
+        }
+        for (String deviceId : deviceIds) {
+            if (deviceId == null || deviceId.isBlank() || deviceId.length() > MAX_DEVICE_ID_LENGTH) {
+                throw new IllegalArgumentException("Invalid device ID");
+            }
+        }
+    }
+
+    public boolean hasSession(String sessionId) {
+        return sessions.containsKey(sessionId);
+    }
+
+    public int sessionCount() {
+        return sessions.size();
+    }
+
+    private static void deliverInViewport(LiveSession session, boolean wide, String deviceId,
+                                          double lat, double lon, BiConsumer<String, String> action) {
+        IndexedViewport indexed = session.viewport;
+        // The wide flag keeps a session caught mid-change in both structures from getting it twice
+        if (indexed != null && indexed.wide == wide && indexed.viewport.contains(lat, lon)
+                && !session.devices.contains(deviceId)) {
+            action.accept(session.sessionId, session.user);
+        }
+    }
+
+    private static boolean anyViewportContains(Set<LiveSession> candidates, boolean wide, double lat, double lon) {
+        for (LiveSession session : candidates) {
+            IndexedViewport indexed = session.viewport;
+            if (indexed != null && indexed.wide == wide && indexed.viewport.contains(lat, lon)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void clearViewport(LiveSession session) {
+        IndexedViewport previous = session.viewport;
+        if (previous == null) {
+            return;
+        }
+        session.viewport = null;
+        if (previous.wide) {
+            wideViewports.remove(session);
+        }
+        for (Long cellKey : previous.cellKeys) {
+            removeFrom(viewportCells, cellKey, session);
+        }
+    }
+
+    /**
+     * False once removeSession has taken the session out; call with the session's lock held
+     */
+    private boolean isRegistered(LiveSession session) {
+        return sessions.get(session.sessionId) == session;
+    }
+
+    private static <K> void addTo(Map<K, Set<LiveSession>> index, K key, LiveSession session) {
+        index.compute(key, (k, subscribers) -> {
+            Set<LiveSession> set = subscribers != null ? subscribers : ConcurrentHashMap.<LiveSession>newKeySet();
+            set.add(session);
+            return set;
+        });
+    }
+
+    private static <K> void removeFrom(Map<K, Set<LiveSession>> index, K key, LiveSession session) {
+        index.computeIfPresent(key, (k, subscribers) -> {
+            subscribers.remove(session);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+    }
+
+    private long cell(double degrees) {
+        return (long) Math.floor(degrees / cellDegrees);
+    }
+
+    private static long cellKey(long latCell, long lonCell) {
+        return (latCell << 32) ^ (lonCell & 0xffffffffL);
+    }
+
+    private static final class LiveSession {
+        private final String sessionId;
+        private final String user;
+        private final Set<String> devices = ConcurrentHashMap.newKeySet();
+        private volatile IndexedViewport viewport;
+
+        private LiveSession(String sessionId, String user) {
+            this.sessionId = sessionId;
+            this.user = user;
+        }
+    }
+
+    private static final class IndexedViewport {
+        private final Viewport viewport;
+        private final boolean wide;
+        private final List<Long> cellKeys = new ArrayList<>();
+
+        private IndexedViewport(Viewport viewport, boolean wide) {
+            this.viewport = viewport;
+            this.wide = wide;
+        }
+    }
+
+    /**
+     * A map viewport as sent by the dashboard; boxes crossing the antimeridian are not supported
+     */
+    @lombok.Data
+    public static class Viewport {
+        private double minLat;
+        private double minLon;
+        private double maxLat;
+        private double maxLon;
+
+        boolean contains(double lat, double lon) {
+            return lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon;
+        }
+
+        void validate() {
+            if (!(minLat >= -90 && maxLat <= 90 && minLon >= -180 && maxLon <= 180
+                    && minLat <= maxLat && minLon <= maxLon)) {
+                throw new IllegalArgumentException("Invalid viewport: " + this);
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.gpstracker.websocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gpstracker.model.GpsData;
+import com.gpstracker.service.ClusterNode;
+import com.gpstracker.service.geofence.GeofenceService;
+import com.gpstracker.service.ingest.IngestListener;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.listener.Topic;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Multi-node live updates over Redis pub/sub, enabled with gps.cluster.mode=redis.
+ *
+ * Every node publishes the readings it saved as compact LivePositionCodec events on
+ * gps:live:<shard>, sharded by fleet (by device for devices without one), one pipelined
+ * round trip per batch. Every node subscribes to all shards and hands readings from other
+ * nodes to its own LiveUpdateConflater, so each node only pushes to the dashboards
+ * connected to it; its own readings were already delivered locally by GpsUpdateBroadcaster
+ * and are dropped by node id when they come back.
+ *
+ * A node reads only the origin, device and position of an event first, and drops it there
+ * when no dashboard connected to the node follows the device or shows its position; only
+ * events someone here will see are decoded and turned into the JSON message. Nodes still
+ * subscribe to every shard: a dashboard follows devices and viewports, not fleets, and a
+ * viewport can take in devices of any fleet, so a node cannot tell which shards it may skip
+ * without also keeping track of which fleet every device it might show belongs to.
+ *
+ * Events are delivered on one thread, so a device's readings reach the conflater in the
+ * order its node published them.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "gps.cluster.mode", havingValue = "redis")
+public class LiveUpdateBackplane implements IngestListener, MessageListener {
+
+    static final String CHANNEL_PREFIX = "gps:live:";
+
+    @Value("${gps.cluster.shards:16}")
+    private int shardCount;
+
+    @Autowired
+    private ClusterNode clusterNode;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedisConnectionFactory connectionFactory;
+
+    @Autowired
+    private GeofenceService geofenceService;
+
+    @Autowired
+    private LiveUpdateConflater liveUpdates;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder publishedBytes = new LongAdder();
+    private final LongAdder publishFailures = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder echoes = new LongAdder();
+    private final LongAdder unfollowed = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+
+    private byte[][] channels;
+    private ExecutorService listenerExecutor;
+    private RedisMessageListenerContainer container;
+
+    @PostConstruct
+    public void start() {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("gps.cluster.shards must be at least 1");
+        }
+
+        channels = new byte[shardCount][];
+        List<Topic> topics = new ArrayList<>(shardCount);
+        for (int shard = 0; shard < shardCount; shard++) {
+            channels[shard] = (CHANNEL_PREFIX + shard).getBytes(StandardCharsets.UTF_8);
+            topics.add(new ChannelTopic(CHANNEL_PREFIX + shard));
+        }
+
+        listenerExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gps-cluster-listener");
+            thread.setDaemon(true);
+            return thread;
+        });
+        container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.setTaskExecutor(listenerExecutor);
+        container.addMessageListener(this, topics);
+        container.afterPropertiesSet();
+        container.start();
+        log.info("Live update backplane started as node {} on {} shards", clusterNode.getId(), shardCount);
+    }
+
+    @PreDestroy
+    public void stop() throws Exception {
+        container.destroy();
+        listenerExecutor.shutdownNow();
+    }
+
+    @Override
+    public void onSaved(List<GpsData> batch) {
+        List<byte[]> events = new ArrayList<>(batch.size());
+        List<byte[]> eventChannels = new ArrayList<>(batch.size());
+        for (GpsData gpsData : batch) {
+            try {
+                events.add(LivePositionCodec.encode(clusterNode.getId(), gpsData, objectMapper));
+                eventChannels.add(channels[shard(gpsData.getDeviceId())]);
+            } catch (IOException e) {
+                log.error("Cannot encode reading of device {}", gpsData.getDeviceId(), e);
+            }
+        }
+        if (events.isEmpty()) {
+            return;
+        }
+
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (int i = 0; i < events.size(); i++) {
+                    connection.publish(eventChannels.get(i), events.get(i));
+                }
+                return null;
+            });
+            published.add(events.size());
+            for (byte[] event : events) {
+                publishedBytes.add(event.length);
+            }
+        } catch (RuntimeException e) {
+            // Local dashboards already have these; only other nodes miss them
+            publishFailures.add(events.size());
+            log.warn("Cannot publish {} live updates to other nodes: {}", events.size(), e.getMessage());
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        byte[] event = message.getBody();
+        try {
+            LivePositionCodec.Route route = LivePositionCodec.decodeRoute(event);
+            if (clusterNode.getId().equals(route.nodeId)) {
+                echoes.increment();
+                return;
+            }
+            received.increment();
+            if (!liveUpdates.hasRecipient(route.deviceId, route.latitude, route.longitude)) {
+                unfollowed.increment();
+                return;
+            }
+            GpsData gpsData = LivePositionCodec.decode(event, objectMapper);
+            liveUpdates.offer(gpsData, GpsUpdateBroadcaster.toMessage(objectMapper, gpsData));
+        } catch (IOException | RuntimeException e) {
+            malformed.increment();
+            log.warn("Dropping live update from channel {}: {}",
+                    new String(message.getChannel(), StandardCharsets.UTF_8), e.getMessage());
+        }
+    }
+
+    /**
+     * Readings of one fleet share a channel, so they stay in publish order relative to each other
+     */
+    private int shard(String deviceId) {
+        String fleetId = geofenceService.getDeviceFleet(deviceId);
+        return Math.floorMod((fleetId != null ? fleetId : deviceId).hashCode(), shardCount);
+    }
+
+    public Map<String, Object> snapshot() {
+        long publishedCount = published.sum();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("mode", "redis");
+        metrics.put("nodeId", clusterNode.getId());
+        metrics.put("shards", shardCount);
+        metrics.put("published", publishedCount);
+        metrics.put("averageEventBytes", publishedCount == 0 ? 0.0 : (double) publishedBytes.sum() / publishedCount);
+        metrics.put("publishFailures", publishFailures.sum());
+        metrics.put("received", received.sum());
+        metrics.put("echoes", echoes.sum());
+        metrics.put("unfollowed", unfollowed.sum());
+        metrics.put("malformed", malformed.sum());
+        return metrics;
+    }
+}
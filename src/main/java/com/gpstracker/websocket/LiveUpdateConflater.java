@@ -0,0 +1,285 @@
+package com.gpstracker.websocket;
+
+import com.gpstracker.model.GpsData;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds live position updates between flushes so that every destination gets at most
+ * one update per device per flush interval: the device topics, and each session's
+ * /user/queue/updates. A newer reading replaces the pending one, so a 10 Hz device costs
+ * subscribers no more than a 1 Hz one at a 1 s interval, and the memory held for a
+ * session is bounded by the number of devices it follows.
+ *
+ * Each session is also capped at max-messages-per-second; what is over the cap stays
+ * pending and keeps being conflated. A session with more than slow-consumer.max-queued
+ * messages not yet written to its socket, or whose current write has been running longer than
+ * slow-consumer.max-write-ms, is skipped (DROP) or, after disconnect-after-ms, closed (DISCONNECT).
+ * Sessions of the compact channel get the same treatment, with their updates batched into
+ * one binary frame per flush by CompactLiveHandler and a backlog counted in frames.
+ */
+@Slf4j
+@Component
+public class LiveUpdateConflater {
+
+    private static final String USER_UPDATES_DESTINATION = "/queue/updates";
+
+    @Value("${gps.live.flush-interval-ms:250}")
+    private long flushIntervalMs;
+
+    @Value("${gps.live.max-messages-per-second:200}")
+    private int maxMessagesPerSecond;
+
+    @Value("${gps.live.firehose-enabled:false}")
+    private boolean firehoseEnabled;
+
+    @Value("${gps.live.slow-consumer.max-queued:500}")
+    private int maxQueued;
+
+    @Value("${gps.live.slow-consumer.max-write-ms:2000}")
+    private long maxWriteMs;
+
+    @Value("${gps.live.slow-consumer.policy:DROP}")
+    private SlowConsumerPolicy slowConsumerPolicy;
+
+    @Value("${gps.live.slow-consumer.disconnect-after-ms:10000}")
+    private long disconnectAfterMs;
+
+    @Autowired
+    private SimpMessagingTemplate messagingTemplate;
+
+    @Autowired
+    private LiveSubscriptionRegistry liveSubscriptions;
+
+    @Autowired
+    private DeviceTopicSubscriptions topicSubscriptions;
+
+    @Autowired
+    private OutboundSessionTracker outboundSessions;
+
+    @Autowired
+    private CompactLiveHandler compactLive;
+
+    private final Map<String, LiveUpdate> pendingTopics = new ConcurrentHashMap<>();
+    private final Map<String, SessionOutbox> outboxes = new ConcurrentHashMap<>();
+
+    private final LongAdder offered = new LongAdder();
+    private final LongAdder conflated = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder skippedFlushes = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+
+    private ScheduledExecutorService flusher;
+
+    @PostConstruct
+    public void start() {
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gps-live-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        flusher.shutdownNow();
+    }
+
+    /**
+     * Queues a reading and its serialized message for the device topic and every matching session
+     */
+    public void offer(GpsData gpsData, Message<byte[]> message) {
+        offered.increment();
+        String deviceId = gpsData.getDeviceId();
+        LiveUpdate update = new LiveUpdate(gpsData, message);
+        if (pendingTopics.put(deviceId, update) != null) {
+            conflated.increment();
+        }
+        liveSubscriptions.forEachRecipient(deviceId, gpsData.getLatitude(), gpsData.getLongitude(), (sessionId, user) -> {
+            SessionOutbox outbox = outboxes.computeIfAbsent(sessionId, id -> new SessionOutbox(user));
+            if (outbox.pending.put(deviceId, update) != null) {
+                conflated.increment();
+            }
+        });
+    }
+
+    /**
+     * Whether a reading of the device at this position would reach anyone connected to this node
+     */
+    public boolean hasRecipient(String deviceId, double lat, double lon) {
+        return topicSubscriptions.hasDeviceSubscribers(deviceId)
+                || firehoseEnabled && topicSubscriptions.hasFirehoseSubscribers()
+                || liveSubscriptions.hasRecipient(deviceId, lat, lon);
+    }
+
+    @EventListener
+    public void onDisconnect(SessionDisconnectEvent event) {
+        outboxes.remove(event.getSessionId());
+    }
+
+    private void flush() {
+        try {
+            flushTopics();
+            long now = System.currentTimeMillis();
+            int budget = (int) Math.max(1, maxMessagesPerSecond * flushIntervalMs / 1000);
+            Iterator<Map.Entry<String, SessionOutbox>> it = outboxes.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, SessionOutbox> entry = it.next();
+                if (!liveSubscriptions.hasSession(entry.getKey())) {
+                    // Offered to while it was disconnecting
+                    it.remove();
+                    continue;
+                }
+                flushSession(entry.getKey(), entry.getValue(), budget, now);
+            }
+        } catch (RuntimeException e) {
+            log.error("Error flushing live updates: ", e);
+        }
+    }
+
+    private void flushTopics() {
+        for (String deviceId : pendingTopics.keySet()) {
+            // remove rather than the iterator, so a reading offered meanwhile is not lost
+            LiveUpdate update = pendingTopics.remove(deviceId);
+            if (update == null) {
+                continue;
+            }
+            Message<byte[]> message = update.message;
+            if (firehoseEnabled) {
+                messagingTemplate.send("/topic/updates", message);
+            }
+            messagingTemplate.send("/topic/device/" + deviceId, message);
+            sent.increment();
+        }
+    }
+
+    private void flushSession(String sessionId, SessionOutbox outbox, int budget, long now) {
+        CompactLiveHandler.CompactSession compact = compactLive.session(sessionId);
+        if (outbox.pending.isEmpty() && (compact == null || !compact.keyframeDue(now))) {
+            return;
+        }
+
+        boolean behind = compact != null ? compact.isBehind()
+                : outboundSessions.depth(sessionId) > maxQueued || outboundSessions.writeMillis(sessionId, now) > maxWriteMs;
+        if (behind) {
+            skippedFlushes.increment();
+            if (outbox.slowSince == 0) {
+                outbox.slowSince = now;
+                log.warn("Session {} is not keeping up ({} {} queued)", sessionId,
+                        compact != null ? compact.depth() : outboundSessions.depth(sessionId),
+                        compact != null ? "frames" : "messages");
+            } else if (slowConsumerPolicy == SlowConsumerPolicy.DISCONNECT && now - outbox.slowSince >= disconnectAfterMs) {
+                log.warn("Closing session {}: behind for {} ms", sessionId, now - outbox.slowSince);
+                disconnects.increment();
+                outbox.pending.clear();
+                if (compact != null) {
+                    compact.close(CloseStatus.SESSION_NOT_RELIABLE);
+                } else {
+                    outboundSessions.close(sessionId, CloseStatus.SESSION_NOT_RELIABLE);
+                }
+            }
+            return;
+        }
+        outbox.slowSince = 0;
+
+        List<LiveUpdate> due = new ArrayList<>(Math.min(budget, outbox.pending.size()));
+        synchronized (outbox.pending) {
+            Iterator<LiveUpdate> it = outbox.pending.values().iterator();
+            while (due.size() < budget && it.hasNext()) {
+                due.add(it.next());
+                it.remove();
+            }
+        }
+
+        if (compact != null) {
+            List<GpsData> readings = new ArrayList<>(due.size());
+            for (LiveUpdate update : due) {
+                readings.add(update.reading);
+            }
+            compact.send(readings, now);
+            sent.add(due.size());
+            return;
+        }
+
+        String destination = "/user/" + outbox.user + USER_UPDATES_DESTINATION;
+        for (LiveUpdate update : due) {
+            messagingTemplate.send(destination, update.message);
+            sent.increment();
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Integer> sessionDepths = outboundSessions.depths();
+        int maxDepth = 0;
+        for (int depth : sessionDepths.values()) {
+            maxDepth = Math.max(maxDepth, depth);
+        }
+        int pending = pendingTopics.size();
+        for (SessionOutbox outbox : outboxes.values()) {
+            pending += outbox.pending.size();
+        }
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("flushIntervalMs", flushIntervalMs);
+        metrics.put("maxMessagesPerSecond", maxMessagesPerSecond);
+        metrics.put("slowConsumerPolicy", slowConsumerPolicy);
+        metrics.put("sessions", sessionDepths.size());
+        metrics.put("subscribedSessions", liveSubscriptions.sessionCount());
+        metrics.put("pendingUpdates", pending);
+        metrics.put("offered", offered.sum());
+        metrics.put("conflated", conflated.sum());
+        metrics.put("sent", sent.sum());
+        metrics.put("skippedFlushes", skippedFlushes.sum());
+        metrics.put("disconnects", disconnects.sum());
+        metrics.put("maxOutboundDepth", maxDepth);
+        metrics.put("outboundDepths", sessionDepths);
+        metrics.put("compact", compactLive.snapshot());
+        return metrics;
+    }
+
+    /**
+     * A reading with its STOMP message, serialized once and shared by every destination
+     */
+    private static final class LiveUpdate {
+        private final GpsData reading;
+        private final Message<byte[]> message;
+
+        private LiveUpdate(GpsData reading, Message<byte[]> message) {
+            this.reading = reading;
+            this.message = message;
+        }
+    }
+
+    private static final class SessionOutbox {
+        private final String user;
+        // Latest reading per device; insertion order keeps a capped flush fair across devices
+        private final Map<String, LiveUpdate> pending = Collections.synchronizedMap(new LinkedHashMap<>());
+        private long slowSince;
+
+        private SessionOutbox(String user) {
+            this.user = user;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.gpstracker.websocket;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketHandlerDecoratorFactory;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the outbound backlog of each STOMP session: messages handed to the client
+ * outbound channel for it and not yet written to its socket. The STOMP handler wraps every
+ * session in a ConcurrentWebSocketSessionDecorator, which buffers a message and returns at
+ * once while another thread is writing, so the backlog of a stalled browser sits in that
+ * buffer rather than on the channel. This class hands the STOMP handler a session of its
+ * own to wrap instead of the raw one; every socket write passes through it, one at a time,
+ * so it sees each message actually written and how long the current write has been running.
+ *
+ * Also keeps the session so a slow consumer can be closed. The STOMP session id is the
+ * WebSocket session id.
+ */
+@Slf4j
+@Component
+public class OutboundSessionTracker implements ChannelInterceptor, WebSocketHandlerDecoratorFactory {
+
+    private final Map<String, TrackedSession> sessions = new ConcurrentHashMap<>();
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        TrackedSession session = sessionOf(message);
+        if (session != null) {
+            session.unsent.incrementAndGet();
+        }
+        return message;
+    }
+
+    @Override
+    public void afterSendCompletion(Message<?> message, MessageChannel channel, boolean sent, Exception ex) {
+        if (!sent) {
+            TrackedSession session = sessionOf(message);
+            if (session != null) {
+                session.written();
+            }
+        }
+    }
+
+    @Override
+    public WebSocketHandler decorate(WebSocketHandler handler) {
+        return new WebSocketHandlerDecorator(handler) {
+            @Override
+            public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+                TrackedSession tracked = new TrackedSession(session);
+                sessions.put(session.getId(), tracked);
+                // The STOMP handler keeps and wraps this one, so its writes come through here
+                super.afterConnectionEstablished(tracked);
+            }
+
+            @Override
+            public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+                sessions.remove(session.getId());
+                super.afterConnectionClosed(session, closeStatus);
+            }
+        };
+    }
+
+    /**
+     * Messages handed to the outbound channel for the session and not yet written to its socket
+     */
+    public int depth(String sessionId) {
+        TrackedSession session = sessions.get(sessionId);
+        return session != null ? session.unsent.get() : 0;
+    }
+
+    /**
+     * How long the write in progress on the session's socket has been running, 0 if none
+     */
+    public long writeMillis(String sessionId, long now) {
+        TrackedSession session = sessions.get(sessionId);
+        long startedAt = session != null ? session.writeStartedAt : 0;
+        return startedAt == 0 ? 0 : Math.max(0, now - startedAt);
+    }
+
+    public Map<String, Integer> depths() {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        sessions.forEach((sessionId, session) -> depths.put(sessionId, session.unsent.get()));
+        return depths;
+    }
+
+    public void close(String sessionId, CloseStatus status) {
+        WebSocketSession session = sessions.get(sessionId);
+        if (session == null) {
+            return;
+        }
+        try {
+            session.close(status);
+        } catch (IOException e) {
+            log.debug("Error closing session {}: {}", sessionId, e.getMessage());
+        }
+    }
+
+    private TrackedSession sessionOf(Message<?> message) {
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+        return sessionId != null ? sessions.get(sessionId) : null;
+    }
+
+    private static final class TrackedSession extends WebSocketSessionDecorator {
+        private final AtomicInteger unsent = new AtomicInteger();
+        private volatile long writeStartedAt;
+
+        private TrackedSession(WebSocketSession delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) throws IOException {
+            writeStartedAt = System.currentTimeMillis();
+            try {
+                super.sendMessage(message);
+            } finally {
+                writeStartedAt = 0;
+                written();
+            }
+        }
+
+        private void written() {
+            // Frames the STOMP handler writes on its own, such as ERROR, were never counted in
+            unsent.updateAndGet(count -> count > 0 ? count - 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.gpstracker.websocket;
+
+/**
+ * What happens to a dashboard session whose outbound queue stays over its limit
+ */
+public enum SlowConsumerPolicy {
+    DROP,      // skip its flushes; only the latest reading per device waits for it
+    DISCONNECT // close it once it has been over the limit for the disconnect delay
+}